@@ -0,0 +1,342 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A Block-Max WAND evaluator for flat BM25 #SUM queries of terms
+ *  (#SUM operators whose arguments are all #SCORE operators on TERM
+ *  operators) when only the top k documents are needed.
+ *  <p>
+ *  Lucene stores, for each block of postings, the impacts of the
+ *  block:  the (freq, norm) pairs that can produce its highest scores.
+ *  Because the index stores field lengths as norms, an impact gives a
+ *  BM25 upper bound for every document in its block.  The evaluator
+ *  reads each segment's postings with an ImpactsEnum.  WAND chooses a
+ *  pivot document, the first document at which the terms' list-wide
+ *  upper bounds (see MaxScore) can reach the k'th best score.  Then the
+ *  block upper bounds of the terms up to the pivot decide whether the
+ *  pivot can really compete.  If it can't, every term up to the pivot
+ *  skips to the end of the shortest of their current blocks, without
+ *  decoding the postings in between.
+ *  </p><p>
+ *  Like MaxScore, the evaluation is safe:  upper bounds are enlarged
+ *  slightly before they are compared with the k'th score, a document
+ *  that is scored has its term scores summed in query order, and ties
+ *  with the k'th score are broken by external docid.  The evaluator
+ *  reads postings from Lucene itself, so it works best with
+ *  streamTermPostings, which doesn't read the inverted lists when the
+ *  query is initialized.
+ *  </p>
+ */
+public class BlockMaxWand {
+
+    //  --------------- Constants and variables -----------------------
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Determine whether a query can be evaluated by this evaluator.
+     *  @param q The query, which must be initialized.
+     *  @param r The retrieval model.
+     *  @param k The number of documents that are needed.
+     *  @return True if the evaluator is enabled for the model's index,
+     *          the query is a BM25 #SUM of #SCORE operators on terms,
+     *          and k is limited.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r, int k) {
+
+        if ((!r.getIndexContext().isBlockMaxWand()) ||
+            (k == Integer.MAX_VALUE) ||
+            (!TermAtATime.isFlatSum(q, r)))
+            return false;
+
+        for (Qry q_i : q.args) {
+            if (!(q_i.getArg(0) instanceof QryIopTerm))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  Evaluate a query with Block-Max WAND.
+     *  @param q The query, which must be initialized, and which
+     *         canEvaluate must accept.
+     *  @param r The retrieval model.
+     *  @param k The number of documents to return.
+     *  @return The top k documents, unsorted.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static ScoreList evaluate(QrySop q, RetrievalModelBM25 r, int k)
+            throws IOException {
+
+        IndexContext index = r.getIndexContext();
+        ScoreList results = new ScoreList(index);
+
+        if (k <= 0)
+            return results;
+
+        int n = q.args.size();
+        Cursor[] cursors = new Cursor[n];
+
+        for (int i = 0; i < n; i++) {
+            QrySopScore s = (QrySopScore) q.args.get(i);
+            String field = s.getArg(0).getField();
+
+            cursors[i] = new Cursor();
+            cursors[i].argIndex = i;
+            cursors[i].term = new BytesRef(((QryIopTerm) s.getArg(0)).getTerm());
+            cursors[i].field = field;
+            cursors[i].weight = s.getBM25Weight();
+            cursors[i].norms = s.getBM25Norms();
+            cursors[i].bound = MaxScore.upperBound(s, r);
+            cursors[i].k1 = r.getK1();
+            cursors[i].b = r.getB();
+            cursors[i].avgDocLen = index.getCollectionStats(field).getAvgFieldLength();
+        }
+
+        TopKCollector top = new TopKCollector(index, k);
+        double[] argScores = new double[n];
+
+        for (LeafReaderContext context : index.getReader().leaves()) {
+            evaluateLeaf(context, cursors, argScores, top);
+        }
+
+        top.addTo(results);
+        return results;
+    }
+
+    /**
+     *  Evaluate the query on one segment of the index.
+     *  @param context The segment.
+     *  @param all The cursors of the query's terms.
+     *  @param argScores Space for the score of each term.
+     *  @param top The top documents so far.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private static void evaluateLeaf(LeafReaderContext context, Cursor[] all,
+                                     double[] argScores, TopKCollector top)
+            throws IOException {
+
+        //  Open the postings of the terms that occur in the segment.
+
+        Cursor[] cursors = new Cursor[all.length];
+        int n = 0;
+
+        for (Cursor c : all) {
+            if (c.open(context))
+                cursors[n++] = c;
+        }
+
+        int docBase = context.docBase;
+
+        while (true) {
+
+            //  Order the cursors by docid, and drop finished cursors.
+
+            for (int i = 1; i < n; i++) {
+                Cursor c = cursors[i];
+                int j = i - 1;
+
+                while ((j >= 0) && (cursors[j].docid > c.docid)) {
+                    cursors[j + 1] = cursors[j];
+                    j--;
+                }
+
+                cursors[j + 1] = c;
+            }
+
+            while ((n > 0) && (cursors[n - 1].docid == DocIdSetIterator.NO_MORE_DOCS))
+                n--;
+
+            if (n == 0)
+                break;
+
+            //  Find the pivot, the first document whose list-wide upper
+            //  bound can reach the threshold.
+
+            double threshold = top.getThreshold();
+            double bound = 0.0;
+            int pivot = -1;
+
+            for (int i = 0; i < n; i++) {
+                bound += cursors[i].bound;
+
+                if (bound * MaxScore.SAFETY >= threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+
+            if (pivot < 0)
+                break;
+
+            int pivotDoc = cursors[pivot].docid;
+
+            while ((pivot + 1 < n) && (cursors[pivot + 1].docid == pivotDoc))
+                pivot++;
+
+            //  Check the block upper bounds at the pivot document.
+
+            double blockBound = 0.0;
+
+            for (int i = 0; i <= pivot; i++)
+                blockBound += cursors[i].getBlockMax(pivotDoc);
+
+            if (blockBound * MaxScore.SAFETY >= threshold) {
+                if (cursors[0].docid == pivotDoc) {
+
+                    //  Score the pivot document.  Same arithmetic and
+                    //  summation order as QrySopSum.getScore.
+
+                    Arrays.fill(argScores, 0.0);
+
+                    for (int i = 0; i <= pivot; i++) {
+                        Cursor c = cursors[i];
+                        int tf = c.postings.freq();
+
+                        argScores[c.argIndex] =
+                                c.weight * tf / (tf + c.norms[docBase + pivotDoc]);
+                        c.advance(pivotDoc + 1);
+                    }
+
+                    double score = 0.0;
+
+                    for (int i = 0; i < argScores.length; i++)
+                        score += argScores[i];
+
+                    top.add(docBase + pivotDoc, score);
+                } else {
+
+                    //  Documents before the pivot can't reach the threshold.
+
+                    for (int i = 0; (i <= pivot) && (cursors[i].docid < pivotDoc); i++)
+                        cursors[i].advance(pivotDoc);
+                }
+            } else {
+
+                //  No document before the end of the shortest current
+                //  block, or before the next term's document, can reach
+                //  the threshold.
+
+                long next = DocIdSetIterator.NO_MORE_DOCS;
+
+                for (int i = 0; i <= pivot; i++)
+                    next = Math.min(next, cursors[i].blockUpTo + 1L);
+
+                if (pivot + 1 < n)
+                    next = Math.min(next, cursors[pivot + 1].docid);
+
+                for (int i = 0; i <= pivot; i++) {
+                    if (cursors[i].docid < next)
+                        cursors[i].advance((int) next);
+                }
+            }
+        }
+    }
+
+    //  --------------- Cursors ---------------------------------------
+
+    /**
+     *  The postings of one query term in the current segment, and the
+     *  upper bound of its current block.
+     */
+    private static class Cursor {
+
+        int argIndex;
+        BytesRef term;
+        String field;
+        double weight;
+        double[] norms;
+        double bound;
+        double k1;
+        double b;
+        double avgDocLen;
+
+        ImpactsEnum postings;
+        int docid;
+
+        //  The last docid of the current block, and the block's upper bound.
+
+        int blockUpTo;
+        double blockMax;
+
+        /**
+         *  Open the term's postings in a segment.
+         *  @param context The segment.
+         *  @return False if the term doesn't occur in the segment.
+         *  @throws IOException Error accessing the Lucene index.
+         */
+        boolean open(LeafReaderContext context) throws IOException {
+
+            Terms terms = context.reader().terms(this.field);
+
+            if (terms == null)
+                return false;
+
+            TermsEnum termsEnum = terms.iterator();
+
+            if (!termsEnum.seekExact(this.term))
+                return false;
+
+            this.postings = termsEnum.impacts(PostingsEnum.FREQS);
+            this.docid = this.postings.nextDoc();
+            this.blockUpTo = -1;
+            return (this.docid != DocIdSetIterator.NO_MORE_DOCS);
+        }
+
+        /**
+         *  Advance to the first document at or after a target.
+         *  @param target The segment docid.
+         *  @throws IOException Error accessing the Lucene index.
+         */
+        void advance(int target) throws IOException {
+            this.docid = (target >= DocIdSetIterator.NO_MORE_DOCS) ?
+                    DocIdSetIterator.NO_MORE_DOCS : this.postings.advance(target);
+        }
+
+        /**
+         *  Get an upper bound on the term's score for the documents in
+         *  the block that contains a target, which must not be before the
+         *  current document.  Also sets blockUpTo.
+         *  @param target The segment docid.
+         *  @return The upper bound.
+         *  @throws IOException Error accessing the Lucene index.
+         */
+        double getBlockMax(int target) throws IOException {
+
+            if (target > this.blockUpTo) {
+                this.postings.advanceShallow(target);
+
+                Impacts impacts = this.postings.getImpacts();
+                double max = 0.0;
+
+                this.blockUpTo = impacts.getDocIdUpTo(0);
+
+                for (Impact impact : impacts.getImpacts(0)) {
+
+                    //  Norms are field lengths.  Lucene compares norms as
+                    //  unsigned values, so a negative norm is very long;
+                    //  treating it as length 0 keeps the bound safe.
+
+                    long length = ((impact.norm < 0) || (impact.norm > Integer.MAX_VALUE)) ?
+                            0 : impact.norm;
+                    double norm = this.k1 * ((1 - this.b) + this.b * length / this.avgDocLen);
+
+                    max = Math.max(max, this.weight * impact.freq / (impact.freq + norm));
+                }
+
+                this.blockMax = Math.min(max, this.bound);
+            }
+
+            return this.blockMax;
+        }
+    }
+}
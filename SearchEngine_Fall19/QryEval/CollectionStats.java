@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  An immutable snapshot of the corpus statistics of one field of an
+ *  index.  Scoring functions read these statistics for every document
+ *  that they score, so Idx computes them once, when the index is
+ *  opened, instead of asking the IndexReader each time.
+ */
+public final class CollectionStats {
+
+    //  --------------- Constants and variables -----------------------
+
+    private final String field;
+    private final long numDocs;
+    private final int docCount;
+    private final long sumTotalTermFreq;
+    private final double avgFieldLength;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Read the statistics of a field from an index.
+     *  @param reader The index.
+     *  @param field The field name.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public CollectionStats(IndexReader reader, String field) throws IOException {
+        this.field = field;
+        this.numDocs = reader.numDocs();
+        this.docCount = reader.getDocCount(field);
+        this.sumTotalTermFreq = reader.getSumTotalTermFreq(field);
+        this.avgFieldLength = (this.docCount > 0) ?
+                this.sumTotalTermFreq / (double) this.docCount : 0.0;
+    }
+
+    /**
+     *  Get the average length of the field in the documents that have it.
+     *  @return The average field length.
+     */
+    public double getAvgFieldLength() {
+        return this.avgFieldLength;
+    }
+
+    /**
+     *  Get the number of documents that contain the field.
+     *  @return The number of documents.
+     */
+    public int getDocCount() {
+        return this.docCount;
+    }
+
+    /**
+     *  Get the field name.
+     *  @return The field name.
+     */
+    public String getField() {
+        return this.field;
+    }
+
+    /**
+     *  Get the total number of documents in the corpus.
+     *  @return The number of documents.
+     */
+    public long getNumDocs() {
+        return this.numDocs;
+    }
+
+    /**
+     *  Get the total number of term occurrences in all instances of the
+     *  field, i.e., the sum of the field lengths.
+     *  @return The total number of term occurrences.
+     */
+    public long getSumTotalTermFreq() {
+        return this.sumTotalTermFreq;
+    }
+
+    /**
+     *  Get a string version of the statistics.
+     *  @return The string version of the statistics.
+     */
+    public String toString() {
+        return this.field + ": numDocs " + this.numDocs + ", docCount " + this.docCount +
+                ", sumTotalTermFreq " + this.sumTotalTermFreq +
+                ", avgFieldLength " + this.avgFieldLength;
+    }
+}
@@ -16,8 +16,11 @@ public class Diversificaton {
     private int maxResultRankingLength;
     boolean needNormalization = false;
     String algorithm;
+    private IndexContext index;
 
-    public Diversificaton(Map<String, String> parameters) {
+    public Diversificaton(Map<String, String> parameters, IndexContext index) {
+
+        this.index = index;
 
         this.lambda = Double.parseDouble(parameters.get("diversity:lambda"));
         this.maxInputRankingsLength = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
@@ -119,7 +122,7 @@ public class Diversificaton {
 
                 List<Double> scoreList = doc.getValue();
 
-                System.out.print(Idx.getExternalDocid(docId));
+                System.out.print(this.index.getExternalDocid(docId));
 //                System.out.println(Arrays.asList(scoreList));
                 for (int i = 0; i < scoreList.size(); i++) {
                     scoreList.set(i, scoreList.get(i) / maxSum);
@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+
+/**
+ *  The external id of each document, stored compactly and indexed by
+ *  internal docid, so that reading an external id is two offset reads
+ *  and a copy instead of loading the document's stored fields.  The
+ *  table also maps external ids to internal docids with a binary
+ *  search of the docids sorted by external id, instead of a term
+ *  lookup in each segment of the index.
+ *  <p>
+ *  The ids are read from the externalId field once and saved in a
+ *  sidecar file next to the index (indexPath + ".externalIds").  Later
+ *  runs map the file instead of scanning the index again, and either
+ *  use it directly, so that the ids stay off-heap and are shared by
+ *  every process that maps the file, or copy it to arrays on the heap.
+ *  The file has a SidecarFile header whose value is the number of
+ *  bytes of ids, then maxDoc+1 big-endian int offsets, then maxDoc
+ *  big-endian int docids sorted by the UTF-8 bytes of their ids, then
+ *  the UTF-8 bytes of all of the ids, concatenated in docid order.  The
+ *  id of document d is the bytes from offset d to offset d+1.  A
+ *  document that has no external id has an empty id.  A file that was
+ *  built from a different version of the index is rebuilt.
+ *  </p>
+ */
+public class ExternalIds {
+
+    //  --------------- Constants and variables -----------------------
+
+    private static final int MAGIC = 0x45584944;        // "EXID"
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     *  The offset of each id in bytes, indexed by internal docid.
+     */
+    private final IntBuffer offsets;
+
+    /**
+     *  The internal docids, sorted by external id.
+     */
+    private final IntBuffer sorted;
+
+    /**
+     *  The UTF-8 bytes of the ids.
+     */
+    private final ByteBuffer bytes;
+
+    private final int maxDoc;
+    private final boolean mapped;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Load the external ids of an index, building the sidecar
+     *  file first if it is missing or out of date.
+     *  @param index The index.
+     *  @param mapped True to keep the ids in the mapped file, false
+     *         to copy them to the heap.
+     *  @throws IOException Error accessing the index or the sidecar file.
+     */
+    public ExternalIds(IndexContext index, boolean mapped) throws IOException {
+
+        this.mapped = mapped;
+
+        String path = SidecarFile.getPath(index.getPath(), ".externalIds");
+
+        if (!SidecarFile.isCurrent(path, MAGIC, FORMAT_VERSION, index)) {
+            write(path, index);
+        }
+
+        ByteBuffer buffer = SidecarFile.map(path);
+
+        this.maxDoc = buffer.getInt(SidecarFile.MAX_DOC_OFFSET);
+
+        int byteCount = buffer.getInt(SidecarFile.VALUE_OFFSET);
+        int p = SidecarFile.HEADER_BYTES;
+
+        this.offsets = SidecarFile.getInts(buffer, p, this.maxDoc + 1, mapped);
+        p += 4 * (this.maxDoc + 1);
+
+        this.sorted = SidecarFile.getInts(buffer, p, this.maxDoc, mapped);
+        p += 4 * this.maxDoc;
+
+        this.bytes = SidecarFile.getBytes(buffer, p, byteCount, mapped);
+    }
+
+    /**
+     *  Compare an external id with the external id of a document.
+     *  Ids are compared as unsigned UTF-8 bytes.
+     *  @param id The UTF-8 bytes of an external id.
+     *  @param docid The internal docid of the document.
+     *  @return A negative number, 0, or a positive number if the id is
+     *          less than, equal to, or greater than the document's id.
+     */
+    private int compare(byte[] id, int docid) {
+
+        int start = this.offsets.get(docid);
+        int length = this.offsets.get(docid + 1) - start;
+        int n = Math.min(id.length, length);
+
+        for (int i = 0; i < n; i++) {
+            int c = (id[i] & 0xff) - (this.bytes.get(start + i) & 0xff);
+
+            if (c != 0)
+                return c;
+        }
+
+        return id.length - length;
+    }
+
+    /**
+     *  Get the external id of a document.
+     *  @param docid The internal docid of the document.
+     *  @return The external id, or null if the document doesn't have one.
+     */
+    public String get(int docid) {
+
+        int start = this.offsets.get(docid);
+        int length = this.offsets.get(docid + 1) - start;
+
+        if (length == 0)
+            return null;
+
+        if (this.bytes.hasArray())
+            return new String(this.bytes.array(), this.bytes.arrayOffset() + start,
+                              length, StandardCharsets.UTF_8);
+
+        //  Absolute reads don't move the shared buffer's position, so
+        //  this is safe when several threads look up ids.
+
+        byte[] id = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            id[i] = this.bytes.get(start + i);
+
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    /**
+     *  Get the internal docid of a document specified by its external id.
+     *  @param externalId The external id.
+     *  @return The internal docid, -1 if no document has the id, or -2
+     *          if several documents have the id.
+     */
+    public int getInternalDocid(String externalId) {
+
+        byte[] id = externalId.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = this.maxDoc - 1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = this.compare(id, this.sorted.get(mid));
+
+            if (c > 0) {
+                lo = mid + 1;
+            } else if (c < 0) {
+                hi = mid - 1;
+            } else {
+                if (((mid > 0) && (this.compare(id, this.sorted.get(mid - 1)) == 0)) ||
+                    ((mid + 1 < this.maxDoc) && (this.compare(id, this.sorted.get(mid + 1)) == 0)))
+                    return -2;
+
+                return this.sorted.get(mid);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     *  Get the number of documents in the table.
+     *  @return maxDoc of the index that the table was built from.
+     */
+    public int size() {
+        return this.maxDoc;
+    }
+
+    /**
+     *  Read the external ids of an index from its stored fields and
+     *  write them to a sidecar file.
+     *  @param path The path of the file.
+     *  @param index The index.
+     *  @throws IOException Error accessing the index or writing the file.
+     */
+    private static void write(String path, IndexContext index) throws IOException {
+
+        IndexReader reader = index.getReader();
+        int maxDoc = reader.maxDoc();
+        int[] offsets = new int[maxDoc + 1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * maxDoc);
+
+        //  Stored fields are read segment by segment, in docid order.
+
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leafReader = context.reader();
+
+            for (int doc = 0; doc < leafReader.maxDoc(); doc++) {
+                Document d = leafReader.document(doc);
+                String externalId = d.get(IndexContext.getExternalIdField());
+
+                if (externalId != null) {
+                    byte[] id = externalId.getBytes(StandardCharsets.UTF_8);
+                    bytes.write(id, 0, id.length);
+                }
+
+                offsets[context.docBase + doc + 1] = bytes.size();
+            }
+        }
+
+        if (SidecarFile.HEADER_BYTES + 4L * (2 * maxDoc + 1) + bytes.size() > Integer.MAX_VALUE)
+            throw new IOException("External id file " + path + " would be larger than 2GB.");
+
+        //  Sort the docids by external id.
+
+        final byte[] b = bytes.toByteArray();
+        final int[] o = offsets;
+        Integer[] sorted = new Integer[maxDoc];
+
+        for (int i = 0; i < maxDoc; i++)
+            sorted[i] = i;
+
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                int lx = o[x + 1] - o[x];
+                int ly = o[y + 1] - o[y];
+                int n = Math.min(lx, ly);
+
+                for (int i = 0; i < n; i++) {
+                    int c = (b[o[x] + i] & 0xff) - (b[o[y] + i] & 0xff);
+
+                    if (c != 0)
+                        return c;
+                }
+
+                return lx - ly;
+            }
+        });
+
+        try (DataOutputStream out = SidecarFile.create(path, MAGIC, FORMAT_VERSION,
+                                                       index, bytes.size())) {
+            for (int offset : offsets)
+                out.writeInt(offset);
+
+            for (int docid : sorted)
+                out.writeInt(docid);
+
+            out.write(b);
+        }
+
+        SidecarFile.commit(path);
+    }
+
+    /**
+     *  Get a short description of the external id table.
+     *  @return A description.
+     */
+    public String toString() {
+        return "External ids: " + this.maxDoc + " documents, " +
+                this.bytes.capacity() + " bytes" +
+                (this.mapped ? ", memory-mapped" : ", on heap");
+    }
+}
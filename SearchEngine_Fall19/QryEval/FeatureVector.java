@@ -70,7 +70,7 @@ public class FeatureVector {
 
                 for (Map.Entry<String, Integer> docEntry : docRelevanceMap.entrySet()) {//for each doc
                     String externalDocId = docEntry.getKey();
-                    int docid = Idx.getInternalDocid(externalDocId);
+                    int docid = model.getIndexContext().getInternalDocid(externalDocId);
                     if (docid == -1) {
                         continue;
                     }
@@ -124,18 +124,20 @@ public class FeatureVector {
 
             RetrievalModel BM25model = new RetrievalModelBM25(model.k1,
                     model.b, model.k3);
+            BM25model.setIndexContext(model.getIndexContext());
 
             for (Map.Entry<Integer, String> queryEntry : queryList) {//for each qid
                 initializeScoreOfFeatures();//todo to-check reset norm score
                 Integer qid = queryEntry.getKey();
                 //User BM25 TO GET relevant top 100 doc
                 String query = queryEntry.getValue();
-                ScoreList result = QryEval.processQuery(query, BM25model);
+                ScoreList result = QryEval.processQuery(query, BM25model, DOC_NUM);
                 int size = Math.min(result.size(), DOC_NUM);
+                result.resolveExternalDocids(size);
 
                 for (int i = 0; i < size; i++) {//for each doc
                     int docid = result.getDocid(i);
-                    String externalDocId = Idx.getExternalDocid(docid);
+                    String externalDocId = result.getExternalDocid(i);
                     if (docid == -1) {
                         continue;
                     }
@@ -181,15 +183,17 @@ public class FeatureVector {
      * @throws IOException
      */
     private void setFeatureVectorScore(int docid, List<String> terms, Map<Integer, Double> featureVector) throws IOException {
+        IndexContext index = model.getIndexContext();
+
         //f1 spam
         if (!this.disabledFeatures.contains("1")) {
-            int spamScore = Integer.parseInt(Idx.getAttribute("spamScore", docid));
+            int spamScore = Integer.parseInt(index.getAttribute("spamScore", docid));
             featureVector.put(1, spamScore * 1.0);
             updateMaxandMin(1, spamScore * 1.0);
         }
 
 
-        String rawUrl = Idx.getAttribute("rawUrl", docid);
+        String rawUrl = index.getAttribute("rawUrl", docid);
         //f2: Url depth for d(number of '/' in the rawUrl field).
         if (!this.disabledFeatures.contains("2")) {
             int depth = 0;
@@ -210,7 +214,7 @@ public class FeatureVector {
 
         // f4: PageRank score for d (read from index).
         if (!this.disabledFeatures.contains("4")) {
-            double prScore = Float.parseFloat(Idx.getAttribute("PageRank", docid));
+            double prScore = Float.parseFloat(index.getAttribute("PageRank", docid));
             featureVector.put(4, prScore);
             updateMaxandMin(4, prScore);
         }
@@ -235,7 +239,7 @@ public class FeatureVector {
             // f7,10,13,16: term overlap
             //Hint: Term overlap is defined as the percentage of query terms that match the document field.
             if (!this.disabledFeatures.contains(String.valueOf(7 + 3 * i))) {
-                double overlap = sop.getTermOverlapPct(docid, field, terms);
+                double overlap = sop.getTermOverlapPct(docid, field, terms, model);
                 featureVector.put(7 + 3 * i, overlap);
                 updateMaxandMin(7 + 3 * i, overlap);
             }
@@ -245,10 +249,10 @@ public class FeatureVector {
         // Combined overlap: 1 - multiplication(1 - overlap[field])
         if (!this.disabledFeatures.contains("17")) {
             QrySopScore sop = new QrySopScore();
-            double overlapBody = 1 - sop.getTermOverlapPct(docid, "body", terms);
-            double overlapTitle = 1 - sop.getTermOverlapPct(docid, "title", terms);
-            double overlapUrl = 1 - sop.getTermOverlapPct(docid, "url", terms);
-            double overlapInlink = 1 - sop.getTermOverlapPct(docid, "inlink", terms);
+            double overlapBody = 1 - sop.getTermOverlapPct(docid, "body", terms, model);
+            double overlapTitle = 1 - sop.getTermOverlapPct(docid, "title", terms, model);
+            double overlapUrl = 1 - sop.getTermOverlapPct(docid, "url", terms, model);
+            double overlapInlink = 1 - sop.getTermOverlapPct(docid, "inlink", terms, model);
             double overlap = 1 - overlapBody * overlapTitle * overlapUrl * overlapInlink;
             featureVector.put(17, overlap);
             updateMaxandMin(17, overlap);
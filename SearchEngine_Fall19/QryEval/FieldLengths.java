@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+
+/**
+ *  The length of each field of each document, stored densely and
+ *  indexed by internal docid, so that reading a field length is an
+ *  array read instead of a segment search and a norms seek.
+ *  <p>
+ *  The lengths are read from the index norms once and saved in a
+ *  sidecar file next to the index (indexPath + ".lengths").  Later
+ *  runs map the file and either use it directly, so that the lengths
+ *  stay off-heap and are shared by every process that maps the file,
+ *  or copy it to int arrays on the heap.  The file has a SidecarFile
+ *  header whose value is the number of fields, then, for each field,
+ *  the field name (an int length and UTF-8 bytes) followed by maxDoc
+ *  big-endian ints.  A file that was built from a different version of
+ *  the index is rebuilt.
+ *  </p>
+ */
+public class FieldLengths {
+
+    //  --------------- Constants and variables -----------------------
+
+    private static final int MAGIC = 0x464c454e;        // "FLEN"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     *  The length of each field, indexed by internal docid.
+     */
+    private final HashMap<String, IntBuffer> lengths = new HashMap<String, IntBuffer>();
+
+    private final boolean mapped;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Load the field lengths of an index, building the sidecar
+     *  file first if it is missing or out of date.
+     *  @param index The index.
+     *  @param mapped True to keep the lengths in the mapped file, false
+     *         to copy them to the heap.
+     *  @throws IOException Error accessing the index or the sidecar file.
+     */
+    public FieldLengths(IndexContext index, boolean mapped) throws IOException {
+
+        this.mapped = mapped;
+
+        String path = SidecarFile.getPath(index.getPath(), ".lengths");
+
+        if (!SidecarFile.isCurrent(path, MAGIC, FORMAT_VERSION, index)) {
+            write(path, index);
+        }
+
+        ByteBuffer buffer = SidecarFile.map(path);
+
+        int maxDoc = buffer.getInt(SidecarFile.MAX_DOC_OFFSET);
+        int fieldCount = buffer.getInt(SidecarFile.VALUE_OFFSET);
+        int p = SidecarFile.HEADER_BYTES;
+
+        for (int i = 0; i < fieldCount; i++) {
+            byte[] name = new byte[buffer.getInt(p)];
+            p += 4;
+
+            for (int j = 0; j < name.length; j++)
+                name[j] = buffer.get(p + j);
+
+            p += name.length;
+
+            IntBuffer fieldLengths = SidecarFile.getInts(buffer, p, maxDoc, mapped);
+            p += 4 * maxDoc;
+
+            this.lengths.put(new String(name, StandardCharsets.UTF_8), fieldLengths);
+        }
+    }
+
+    /**
+     *  Get the length of a field in a document.
+     *  @param fieldName The field name.
+     *  @param docid The internal docid of the document.
+     *  @return The length of the field, or -1 if the field is not stored.
+     */
+    public int getLength(String fieldName, int docid) {
+
+        IntBuffer fieldLengths = this.lengths.get(fieldName);
+
+        return (fieldLengths == null) ? -1 : fieldLengths.get(docid);
+    }
+
+    /**
+     *  Get the length of a field in every document.  The buffer must
+     *  only be read with absolute gets, because it is shared.
+     *  @param fieldName The field name.
+     *  @return The field lengths, indexed by internal docid, or null if
+     *          the field is not stored.
+     */
+    public IntBuffer getLengths(String fieldName) {
+        return this.lengths.get(fieldName);
+    }
+
+    /**
+     *  Read the length of a field in every document from the norms of
+     *  an index.
+     *  @param reader The index.
+     *  @param field The field name.
+     *  @return The field lengths, indexed by internal docid.
+     *  @throws IOException Error accessing the index.
+     */
+    static int[] readNorms(IndexReader reader, String field) throws IOException {
+
+        int[] fieldLengths = new int[reader.maxDoc()];
+
+        for (LeafReaderContext context : reader.leaves()) {
+            NumericDocValues norms = context.reader().getNormValues(field);
+
+            if (norms == null)
+                continue;
+
+            for (int doc = norms.nextDoc();
+                 doc != DocIdSetIterator.NO_MORE_DOCS;
+                 doc = norms.nextDoc()) {
+                fieldLengths[context.docBase + doc] = (int) norms.longValue();
+            }
+        }
+
+        return fieldLengths;
+    }
+
+    /**
+     *  Read the field lengths of an index from its norms and write them
+     *  to a sidecar file.
+     *  @param path The path of the file.
+     *  @param index The index.
+     *  @throws IOException Error accessing the index or writing the file.
+     */
+    private static void write(String path, IndexContext index) throws IOException {
+
+        IndexReader reader = index.getReader();
+
+        try (DataOutputStream out = SidecarFile.create(path, MAGIC, FORMAT_VERSION,
+                                                       index, Idx.FIELDS.length)) {
+            for (String field : Idx.FIELDS) {
+                int[] fieldLengths = readNorms(reader, field);
+                byte[] name = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+
+                for (int length : fieldLengths)
+                    out.writeInt(length);
+            }
+        }
+
+        SidecarFile.commit(path);
+    }
+
+    /**
+     *  Get a short description of the field lengths.
+     *  @return A description.
+     */
+    public String toString() {
+        return "Field lengths: " + this.lengths.keySet() +
+                (this.mapped ? ", memory-mapped" : ", on heap");
+    }
+}
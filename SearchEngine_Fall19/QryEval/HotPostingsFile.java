@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  A sidecar file that stores the inverted lists of the terms that
+ *  occur most often in a query log, so that they can be memory-mapped
+ *  instead of being read from Lucene and copied to the heap for every
+ *  query.  The file is written once by write and then opened by the
+ *  constructor, which maps it read-only with FileChannel.map.
+ *  <p>
+ *  The file has a SidecarFile header whose value is the offset of the
+ *  term directory, followed by one columnar inverted list per term
+ *  (docids, tfs, df+1 position offsets, positions), followed by the
+ *  term directory.  Each directory entry is a "term.field" key, df,
+ *  ctf, and the offset of the list.  All values are big-endian ints
+ *  unless noted otherwise.  A file that was built from a different
+ *  version of the index is rejected.
+ *  </p>
+ */
+public class HotPostingsFile {
+
+    //  --------------- Constants and variables -----------------------
+
+    private static final int MAGIC = 0x48505354;        // "HPST"
+    private static final int FORMAT_VERSION = 2;
+
+    private final String path;
+    private final ByteBuffer buffer;
+
+    /**
+     *  The location of each inverted list in the file, indexed by
+     *  "term.field".  Each entry is {df, ctf, offset}.
+     */
+    private final HashMap<String, int[]> directory = new HashMap<String, int[]>();
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Open and map a hot postings file.
+     *  @param path The path of the file.
+     *  @param index The index that the file was built from.
+     *  @throws IOException The file can't be read, or it was built from
+     *          a different version of the index.
+     */
+    public HotPostingsFile(String path, IndexContext index) throws IOException {
+
+        this.path = path;
+
+        if (!isCurrent(path, index))
+            throw new IOException(path + " is not a hot postings file of" +
+                    " the current version of the index.");
+
+        this.buffer = SidecarFile.map(path);
+
+        //  Read the term directory.
+
+        int p = this.buffer.getInt(SidecarFile.VALUE_OFFSET);
+        int count = this.buffer.getInt(p);
+        p += 4;
+
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[this.buffer.getInt(p)];
+            p += 4;
+
+            for (int j = 0; j < key.length; j++)
+                key[j] = this.buffer.get(p + j);
+
+            p += key.length;
+
+            int[] entry = new int[]{this.buffer.getInt(p),
+                    this.buffer.getInt(p + 4), this.buffer.getInt(p + 8)};
+            p += 12;
+
+            this.directory.put(new String(key, StandardCharsets.UTF_8), entry);
+        }
+    }
+
+    /**
+     *  Get the inverted list of a term, if it is in the file.
+     *  @param term The processed (stemmed, lower-cased, etc) term string.
+     *  @param field The field that the term occurs in.
+     *  @return The inverted list, or null if the term is not in the file.
+     */
+    public PostingList getInvList(String term, String field) {
+
+        int[] entry = this.directory.get(term + "." + field);
+
+        if (entry == null)
+            return null;
+
+        return new InvListMapped(field, entry[0], entry[1], this.buffer, entry[2]);
+    }
+
+    /**
+     *  Determine whether a hot postings file exists and was built from
+     *  the current version of an index.
+     *  @param path The path of the file.
+     *  @param index The index.
+     *  @return True if the file can be opened.
+     */
+    public static boolean isCurrent(String path, IndexContext index) {
+        return SidecarFile.isCurrent(path, MAGIC, FORMAT_VERSION, index);
+    }
+
+    /**
+     *  Count the query terms in a query log.  Each line of the log has
+     *  the form qid:query, as in a query file.  Lines that can't be
+     *  parsed are ignored.
+     *  @param queryLogPath The path of the query log.
+     *  @param counts Filled with the frequency of each "term.field".
+     *  @param terms Filled with an example TERM operator for each key.
+     *  @throws IOException Error reading the log or accessing the index.
+     */
+    private static void countQueryTerms(String queryLogPath,
+                                        Map<String, Integer> counts,
+                                        Map<String, QryIopTerm> terms)
+            throws IOException {
+
+        try (BufferedReader input = new BufferedReader(new FileReader(queryLogPath))) {
+            String line;
+
+            while ((line = input.readLine()) != null) {
+                int colon = line.indexOf(':');
+                String query = line.substring(colon + 1).trim();
+
+                if (query.isEmpty())
+                    continue;
+
+                Qry q;
+
+                try {
+                    q = QryParser.getQuery("#or(" + query + ")");
+                } catch (IllegalArgumentException ex) {
+                    continue;
+                }
+
+                //  Walk the query tree to find its terms.
+
+                ArrayDeque<Qry> stack = new ArrayDeque<Qry>();
+
+                if (q != null)
+                    stack.push(q);
+
+                while (!stack.isEmpty()) {
+                    Qry n = stack.pop();
+
+                    if (n instanceof QryIopTerm) {
+                        String key = ((QryIopTerm) n).getTerm() + "." +
+                                ((QryIopTerm) n).getField();
+                        Integer c = counts.get(key);
+                        counts.put(key, (c == null) ? 1 : c + 1);
+                        terms.put(key, (QryIopTerm) n);
+                    }
+
+                    for (Qry arg : n.args)
+                        stack.push(arg);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Build a hot postings file for an index from the numTerms terms
+     *  that occur most often in a query log.
+     *  @param path The path of the file to write.
+     *  @param queryLogPath The path of the query log.
+     *  @param numTerms The number of terms to store.
+     *  @param index The index.
+     *  @throws IOException Error reading the log, accessing the index,
+     *          or writing the file.
+     */
+    public static void write(String path, String queryLogPath, int numTerms,
+                             IndexContext index)
+            throws IOException {
+
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        Map<String, QryIopTerm> terms = new HashMap<String, QryIopTerm>();
+
+        countQueryTerms(queryLogPath, counts, terms);
+
+        List<String> keys = new ArrayList<String>(counts.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = counts.get(b).compareTo(counts.get(a));
+                return (c != 0) ? c : a.compareTo(b);
+            }
+        });
+
+        if (keys.size() > numTerms)
+            keys = keys.subList(0, numTerms);
+
+        //  Write the header, the inverted lists, and then the directory.
+        //  The directory offset in the header is set when it is known.
+
+        List<int[]> entries = new ArrayList<int[]>();
+        List<String> stored = new ArrayList<String>();
+        long directoryOffset;
+
+        try (DataOutputStream out = SidecarFile.create(path, MAGIC, FORMAT_VERSION,
+                                                       index, 0)) {
+
+            long offset = SidecarFile.HEADER_BYTES;
+            long directoryBytes = 4;            // The entry count.
+
+            for (String key : keys) {
+                QryIopTerm t = terms.get(key);
+                InvList list = new InvList(index, t.getTerm(), t.getField());
+                long size = 4L * (3L * list.df + 1 + list.ctf);
+                long entryBytes = 4 + key.getBytes(StandardCharsets.UTF_8).length + 12;
+
+                //  The file, including its directory, must be mappable.
+
+                if (offset + size + directoryBytes + entryBytes > Integer.MAX_VALUE)
+                    break;
+
+                directoryBytes += entryBytes;
+
+                for (int i = 0; i < list.df; i++)
+                    out.writeInt(list.getDocid(i));
+
+                for (int i = 0; i < list.df; i++)
+                    out.writeInt(list.getTf(i));
+
+                int positionOffset = 0;
+
+                for (int i = 0; i < list.df; i++) {
+                    out.writeInt(positionOffset);
+                    positionOffset += list.getTf(i);
+                }
+
+                out.writeInt(positionOffset);
+
+                for (int i = 0; i < list.df; i++)
+                    for (int j = 0; j < list.getTf(i); j++)
+                        out.writeInt(list.getPosition(i, j));
+
+                entries.add(new int[]{list.df, list.ctf, (int) offset});
+                stored.add(key);
+                offset += size;
+            }
+
+            directoryOffset = offset;
+            out.writeInt(stored.size());
+
+            for (int i = 0; i < stored.size(); i++) {
+                byte[] key = stored.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+
+                for (int v : entries.get(i))
+                    out.writeInt(v);
+            }
+        }
+
+        SidecarFile.setValue(path, (int) directoryOffset);
+        SidecarFile.commit(path);
+    }
+
+    /**
+     *  Get the number of terms in the file.
+     *  @return The number of terms.
+     */
+    public int size() {
+        return this.directory.size();
+    }
+
+    /**
+     *  Get a short description of the file.
+     *  @return A description.
+     */
+    public String toString() {
+        return "Hot postings: " + this.directory.size() + " terms, " +
+                (this.buffer.capacity() / (1024 * 1024)) + " MB mapped from " + this.path;
+    }
+}
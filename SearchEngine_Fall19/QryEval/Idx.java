@@ -4,13 +4,10 @@
 
 import java.io.*;
 import java.nio.file.Paths;
-import java.util.*;
+import java.util.concurrent.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
 import org.apache.lucene.store.*;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -18,9 +15,16 @@ import org.apache.lucene.util.BytesRef;
  *  <p>
  *  Most homework assignments only require a single index.  However,
  *  several distinct indexes can be open simultaneously (e.g., for
- *  federated search).  The Idx class designates one index the
- *  <i>current</i> index.  All requests are satisfied from the current
- *  index.  setCurrentIndex changes the current index.
+ *  federated search).  Each open index is an IndexContext, and Idx
+ *  keeps a thread-safe registry of them, indexed by path.  Query
+ *  evaluation uses the index of its retrieval model (see
+ *  RetrievalModel.getIndexContext), so threads can evaluate queries
+ *  against different indexes at the same time.
+ *  </p><p>
+ *  The Idx class also designates one index the <i>current</i> index.
+ *  It is the index of retrieval models that don't name one, and the
+ *  static methods of Idx (getExternalDocid, getFieldLength, etc) are
+ *  satisfied from it.  setCurrentIndex changes the current index.
  *  </p>
  */
 public class Idx {
@@ -28,13 +32,22 @@ public class Idx {
     //  --------------- Constants and variables ---------------------
 
     /**
-     *  The Lucene index that is considered the current index.
+     *  The open indexes, indexed by path.
      */
-    public static IndexReader INDEXREADER = null;
+    private static final ConcurrentHashMap<String, IndexContext> openIndexes =
+            new ConcurrentHashMap<String, IndexContext>();
 
-    private static HashMap<String, IndexReader> openIndexReaders =
-            new HashMap<String, IndexReader>();
-    private static String externalIdField = new String("externalId");
+    /**
+     *  The index that is considered the current index.
+     */
+    private static volatile IndexContext current = null;
+
+    /**
+     *  The document fields that queries may use.  Their statistics are
+     *  computed when an index is opened.
+     */
+    static final String[] FIELDS =
+            {"body", "title", "url", "inlink", "keywords"};
 
     //  --------------- Methods ---------------------------------------
 
@@ -47,9 +60,53 @@ public class Idx {
      */
     public static String getAttribute(String attributeName, int docid)
             throws IOException {
+        return Idx.getContext().getAttribute(attributeName, docid);
+    }
 
-        Document d = Idx.INDEXREADER.document(docid);
-        return d.get(attributeName);
+    /**
+     *  Get the corpus statistics of a field of the current index.  The
+     *  statistics of the usual fields are computed when the index is
+     *  opened; the statistics of other fields are read on demand.
+     *  @param fieldName the field name
+     *  @return the statistics of the field
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static CollectionStats getCollectionStats(String fieldName)
+            throws IOException {
+        return Idx.getContext().getCollectionStats(fieldName);
+    }
+
+    /**
+     *  Get the current index.
+     *  @return the current index.
+     *  @throws IllegalStateException No index is open.
+     */
+    public static IndexContext getContext() {
+
+        IndexContext index = Idx.current;
+
+        if (index == null)
+            throw new IllegalStateException("No index is open.");
+
+        return index;
+    }
+
+    /**
+     *  Get an open index.
+     *  @param indexPath A directory that contains an open Lucene index.
+     *  @return the index.
+     *  @throws IllegalArgumentException The specified index isn't open.
+     */
+    public static IndexContext getContext(String indexPath)
+            throws IllegalArgumentException {
+
+        IndexContext index = Idx.openIndexes.get(indexPath);
+
+        if (index == null) {
+            throw new IllegalArgumentException("The index " + indexPath + " isn't open.");
+        }
+
+        return index;
     }
 
     /**
@@ -60,7 +117,7 @@ public class Idx {
      */
     public static int getDocCount(String fieldName)
             throws IOException {
-        return Idx.INDEXREADER.getDocCount(fieldName);
+        return Idx.getCollectionStats(fieldName).getDocCount();
     }
 
     /**
@@ -71,9 +128,15 @@ public class Idx {
      *  @throws IOException Error accessing the Lucene index.
      */
     public static String getExternalDocid(int internalId) throws IOException {
-        Document d = Idx.INDEXREADER.document(internalId);
-        String externalId = d.get(externalIdField);
-        return externalId;
+        return Idx.getContext().getExternalDocid(internalId);
+    }
+
+    /**
+     *  Get the Lucene index of the current index.
+     *  @return the IndexReader.
+     */
+    public static IndexReader getIndexReader() {
+        return Idx.getContext().getReader();
     }
 
     /**
@@ -85,20 +148,7 @@ public class Idx {
      */
     public static long getFieldLength(String fieldName, int docid)
             throws IOException {
-
-        LeafReaderContext leafContext = getLeafReaderContext(Idx.INDEXREADER, docid);
-        int leafDocid = docid - leafContext.docBase;
-        LeafReader leafReader = leafContext.reader();
-        NumericDocValues norms = leafReader.getNormValues(fieldName);
-        long fieldLength = 0;
-
-        if (norms != null) {
-            if (norms.advanceExact(leafDocid)) {
-                fieldLength = norms.longValue();
-            }
-        }
-
-        return fieldLength;
+        return Idx.getContext().getFieldLength(fieldName, docid);
     }
 
     /**
@@ -111,75 +161,7 @@ public class Idx {
      */
     public static int getInternalDocid(String externalId)
             throws Exception {
-
-        LeafReaderContext leafContext =
-                getLeafReaderContext(Idx.INDEXREADER, externalId);
-
-        if (leafContext == null)
-            throw new Exception("External id " + externalId + " not found.");
-
-        Term term = new Term(externalIdField, externalId);
-        LeafReader leafReader = leafContext.reader();
-        PostingsEnum postings = leafReader.postings(term);
-
-        if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-            int internalId = leafContext.docBase + postings.docID();
-            return (internalId);
-        }
-        ;
-
-        throw new Exception("External id should exist, but isn't found.");
-    }
-
-    /**
-     *  Get the context of the LeafReader that contains the specified document.
-     *  @param reader An IndexReader (probably a CompositeReader)
-     *  @param docid An external document id
-     *  @return the LeafReaderContext that contains the document, or null
-     *  @throws IOException Error accessing the Lucene index.
-     */
-    private static LeafReaderContext getLeafReaderContext(IndexReader reader, String docid)
-            throws Exception, IOException {
-
-        Term term = new Term(externalIdField, docid);
-
-        if (reader.docFreq(term) > 1)
-            throw new Exception("Multiple matches for external id " + docid);
-
-        for (LeafReaderContext leafContext : reader.leaves()) {
-            LeafReader leafReader = leafContext.reader();
-            if (leafReader.postings(term) != null) {
-                return (leafContext);
-            }
-            ;
-        }
-        ;
-
-        return null;
-    }
-
-    /**
-     *  Get the context of the LeafReader that contains the specified document.
-     *  @param reader An IndexReader (probably a CompositeReader)
-     *  @param docid An internal document id
-     *  @return the LeafReaderContext that contains the document, or null
-     */
-    private static LeafReaderContext getLeafReaderContext(IndexReader reader, long docid) {
-
-        LeafReader leafReader = null;
-
-        for (LeafReaderContext leafContext : reader.leaves()) {
-            leafReader = leafContext.reader();
-            int minDocid = leafContext.docBase;
-            int maxDocid = leafContext.docBase + leafReader.numDocs();
-            if ((docid >= minDocid) && (docid < maxDocid)) {
-                return leafContext;
-            }
-            ;
-        }
-        ;
-
-        return null;
+        return Idx.getContext().getInternalDocid(externalId);
     }
 
     /**
@@ -188,7 +170,7 @@ public class Idx {
      *  @throws IOException Error accessing the Lucene index.
      */
     public static long getNumDocs() throws IOException {
-        return Idx.INDEXREADER.numDocs();
+        return Idx.getContext().getNumDocs();
     }
 
     /**
@@ -201,7 +183,7 @@ public class Idx {
      */
     public static long getSumOfFieldLengths(String fieldName)
             throws IOException {
-        return Idx.INDEXREADER.getSumTotalTermFreq(fieldName);
+        return Idx.getCollectionStats(fieldName).getSumTotalTermFreq();
     }
 
 
@@ -216,24 +198,29 @@ public class Idx {
      */
     public static long getTotalTermFreq(String fieldName, String term)
             throws IOException {
-        return INDEXREADER.totalTermFreq(new Term(fieldName, new BytesRef(term)));
+        return Idx.getContext().getTotalTermFreq(fieldName, term);
     }
 
 
     /**
-     *  Open a Lucene index.
+     *  Open a Lucene index, or get it if it is already open.  The first
+     *  index that is opened becomes the current index.
      *  @param indexPath A directory that contains a Lucene index.
+     *  @return the index.
      *  @throws IllegalArgumentException Unable to open the index.
      *  @throws IOException Error accessing the index.
      */
-    public static void open(String indexPath)
+    public static synchronized IndexContext open(String indexPath)
             throws IllegalArgumentException, IOException {
 
-        IndexReader indexReader;
+        IndexContext index = Idx.openIndexes.get(indexPath);
+
+        if (index != null)
+            return index;
 
         //  Open the Lucene index
 
-        indexReader =
+        IndexReader indexReader =
                 DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
 
         if (indexReader == null) {
@@ -242,12 +229,22 @@ public class Idx {
 
         //  Keep track of the open indexes.
 
-        openIndexReaders.put(indexPath, indexReader);
+        index = new IndexContext(indexPath, indexReader, FIELDS);
+        Idx.register(index);
+        return index;
+    }
+
+    /**
+     *  Add an open index to the registry.  The first index that is
+     *  registered becomes the current index.
+     *  @param index The index.
+     */
+    static synchronized void register(IndexContext index) {
 
-        //  The current index defaults to the first open index.
+        Idx.openIndexes.put(index.getPath(), index);
 
-        if (Idx.INDEXREADER == null) {
-            Idx.INDEXREADER = indexReader;
+        if (Idx.current == null) {
+            Idx.current = index;
         }
     }
 
@@ -259,13 +256,13 @@ public class Idx {
     public static void setCurrentIndex(String indexPath)
             throws IllegalArgumentException {
 
-        IndexReader indexReader = openIndexReaders.get(indexPath);
+        IndexContext index = Idx.openIndexes.get(indexPath);
 
-        if (indexReader == null) {
+        if (index == null) {
             throw new IllegalArgumentException(
                     "An index must be open before it can be the current index");
         }
 
-        Idx.INDEXREADER = indexReader;
+        Idx.current = index;
     }
 }
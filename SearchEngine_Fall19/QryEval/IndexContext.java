@@ -0,0 +1,668 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An open Lucene index and the data that is derived from it:  corpus
+ *  statistics, length normalization tables, and the optional field
+ *  length, external id, and hot postings sidecars.  Idx keeps a
+ *  registry of open indexes, and a retrieval model says which index a
+ *  query is evaluated against (see RetrievalModel.getIndexContext), so
+ *  queries can be evaluated against several indexes at once.
+ *  <p>
+ *  An IndexContext also holds the settings that control how queries
+ *  are evaluated against the index:  its inverted list caches, the
+ *  threads that read long inverted lists, whether TERM lists are
+ *  streamed and derived lists are compressed, and which evaluators
+ *  processQuery uses for flat BM25 #SUM queries.
+ *  </p><p>
+ *  An IndexContext is thread-safe.  The reader, statistics, and
+ *  segment table don't change after the index is opened.  The sidecars
+ *  are read-only once they are set.  The norms handles that
+ *  getFieldLength reads from are stateful iterators, so each thread
+ *  has its own.
+ *  </p>
+ */
+public class IndexContext {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String externalIdField = "externalId";
+
+    private final String path;
+    private final IndexReader reader;
+
+    /**
+     *  The statistics of the usual fields (Idx.FIELDS), computed when
+     *  the index is opened.
+     */
+    private final Map<String, CollectionStats> collectionStats;
+
+    /**
+     *  Length normalization tables, built when they are first requested.
+     */
+    private final LengthNorms lengthNorms = new LengthNorms(this);
+
+    /**
+     *  The segments of the index and the first docid of each, for
+     *  finding the segment that contains a document.  docBases has an
+     *  extra entry, maxDoc.
+     */
+    private final LeafReaderContext[] leaves;
+    private final int[] docBases;
+
+    /**
+     *  Each thread's open norms of each segment, indexed by field name.
+     *  Norms are read forward, so a handle is reopened only when a
+     *  lookup goes back to an earlier document.
+     */
+    private final ThreadLocal<HashMap<String, NumericDocValues[]>> leafNorms =
+            new ThreadLocal<HashMap<String, NumericDocValues[]>>() {
+                protected HashMap<String, NumericDocValues[]> initialValue() {
+                    return new HashMap<String, NumericDocValues[]>();
+                }
+            };
+
+    /**
+     *  Stands in for the norms of a segment that has none for a field,
+     *  so that the segment isn't asked for them again.
+     */
+    private static final NumericDocValues NO_NORMS = DocValues.emptyNumeric();
+
+    /**
+     *  Dense field lengths, or null if field lengths are read from the
+     *  norms.
+     */
+    private volatile FieldLengths fieldLengths = null;
+
+    /**
+     *  The external id table, or null if external ids are read from
+     *  the stored fields.
+     */
+    private volatile ExternalIds externalIds = null;
+
+    /**
+     *  Memory-mapped inverted lists of frequent query terms, or null.
+     */
+    private volatile HotPostingsFile hotPostings = null;
+
+    /**
+     *  A cache of TERM inverted lists that is shared across queries, or
+     *  null if they are not cached.
+     */
+    private volatile InvListCache invListCache = null;
+
+    /**
+     *  A cache of the inverted lists of operators such as #SYN and
+     *  #NEAR/n that is shared across queries, or null if they are not
+     *  cached.
+     */
+    private volatile InvListCache qryIopCache = null;
+
+    /**
+     *  Threads that read the segments of long inverted lists in
+     *  parallel, or null if segments are read sequentially.
+     */
+    private volatile ExecutorService segmentExecutor = null;
+
+    /**
+     *  True if TERM operators iterate over Lucene postings directly,
+     *  false if they materialize an InvList during evaluation.
+     */
+    private volatile boolean streamPostings = true;
+
+    /**
+     *  True if the inverted lists of operators that have arguments are
+     *  stored as InvListCompressed after they are evaluated.
+     */
+    private volatile boolean compressDerivedLists = true;
+
+    //  True if processQuery uses BlockMaxWand, MaxScore, or TermAtATime
+    //  for the queries that they support.
+
+    private volatile boolean blockMaxWand = false;
+    private volatile boolean maxScore = false;
+    private volatile boolean termAtATime = false;
+
+    /**
+     *  The type of TermAtATime accumulators:  "dense", "sparse", or
+     *  "auto".
+     */
+    private volatile String termAtATimeAccumulators = "auto";
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Wrap an open index.  Corpus statistics are computed here, because
+     *  they don't change while the index is open.
+     *  @param path The directory that contains the index.
+     *  @param reader The index.
+     *  @param fields The fields whose statistics are computed now.
+     *  @throws IOException Error accessing the index.
+     */
+    public IndexContext(String path, IndexReader reader, String[] fields)
+            throws IOException {
+
+        this.path = path;
+        this.reader = reader;
+
+        Map<String, CollectionStats> stats = new HashMap<String, CollectionStats>();
+
+        for (String field : fields) {
+            stats.put(field, new CollectionStats(reader, field));
+        }
+
+        this.collectionStats = Collections.unmodifiableMap(stats);
+
+        List<LeafReaderContext> contexts = reader.leaves();
+
+        this.leaves = contexts.toArray(new LeafReaderContext[contexts.size()]);
+        this.docBases = new int[this.leaves.length + 1];
+
+        for (int i = 0; i < this.leaves.length; i++)
+            this.docBases[i] = this.leaves[i].docBase;
+
+        this.docBases[this.leaves.length] = reader.maxDoc();
+    }
+
+    /**
+     *  Get the specified attribute from the specified document.
+     *  @param attributeName Name of attribute
+     *  @param docid The internal docid in the lucene index.
+     *  @return the attribute value
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public String getAttribute(String attributeName, int docid)
+            throws IOException {
+
+        Document d = this.reader.document(docid);
+        return d.get(attributeName);
+    }
+
+    /**
+     *  Get the corpus statistics of a field.  The statistics of the
+     *  usual fields are computed when the index is opened; the
+     *  statistics of other fields are read on demand.
+     *  @param fieldName the field name
+     *  @return the statistics of the field
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public CollectionStats getCollectionStats(String fieldName)
+            throws IOException {
+
+        CollectionStats stats = this.collectionStats.get(fieldName);
+
+        if (stats == null) {
+            stats = new CollectionStats(this.reader, fieldName);
+        }
+
+        return stats;
+    }
+
+    /**
+     *  Get the external document id for a document specified by an
+     *  internal document id.
+     *  @param internalId The internal document id of the document.
+     *  @return the external document id
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public String getExternalDocid(int internalId) throws IOException {
+
+        ExternalIds ids = this.externalIds;
+
+        if (ids != null)
+            return ids.get(internalId);
+
+        Document d = this.reader.document(internalId);
+        return d.get(externalIdField);
+    }
+
+    /**
+     *  Get the name of the field that stores external document ids.
+     *  @return the field name
+     */
+    static String getExternalIdField() {
+        return externalIdField;
+    }
+
+    /**
+     *  Get the external id table.
+     *  @return the table, or null if external ids are read from the
+     *          stored fields.
+     */
+    public ExternalIds getExternalIds() {
+        return this.externalIds;
+    }
+
+    /**
+     *  Get the dense field lengths.
+     *  @return the field lengths, or null if they are read from the norms.
+     */
+    public FieldLengths getFieldLengths() {
+        return this.fieldLengths;
+    }
+
+    /**
+     *  Get the cache of TERM inverted lists that is shared across queries.
+     *  @return the cache, or null if inverted lists are not cached.
+     */
+    public InvListCache getInvListCache() {
+        return this.invListCache;
+    }
+
+    /**
+     *  Get the cache of the inverted lists of operators that have
+     *  arguments (e.g., #SYN, #NEAR/n) that is shared across queries.
+     *  @return the cache, or null if the lists are not cached.
+     */
+    public InvListCache getQryIopCache() {
+        return this.qryIopCache;
+    }
+
+    /**
+     *  Get the executor that reads the segments of long inverted lists
+     *  in parallel.
+     *  @return the executor, or null if segments are read sequentially.
+     */
+    public ExecutorService getSegmentExecutor() {
+        return this.segmentExecutor;
+    }
+
+    /**
+     *  Get the type of accumulators that TermAtATime uses.
+     *  @return "dense", "sparse", or "auto".
+     */
+    public String getTermAtATimeAccumulators() {
+        return this.termAtATimeAccumulators;
+    }
+
+    /**
+     *  Determine whether processQuery evaluates flat BM25 #SUM queries
+     *  of terms with BlockMaxWand when only the top k documents are
+     *  needed.
+     *  @return True if the evaluator is used.
+     */
+    public boolean isBlockMaxWand() {
+        return this.blockMaxWand;
+    }
+
+    /**
+     *  Determine whether the inverted lists of operators that have
+     *  arguments (e.g., #SYN, #NEAR/n) are stored block-compressed.
+     *  @return True if derived inverted lists are compressed.
+     */
+    public boolean isCompressDerivedLists() {
+        return this.compressDerivedLists;
+    }
+
+    /**
+     *  Determine whether processQuery evaluates flat BM25 #SUM queries
+     *  with MaxScore when only the top k documents are needed.
+     *  @return True if the evaluator is used.
+     */
+    public boolean isMaxScore() {
+        return this.maxScore;
+    }
+
+    /**
+     *  Determine whether TERM operators iterate over Lucene postings
+     *  directly or materialize their inverted lists.
+     *  @return True if TERM operators iterate over Lucene postings.
+     */
+    public boolean isStreamPostings() {
+        return this.streamPostings;
+    }
+
+    /**
+     *  Determine whether processQuery evaluates flat BM25 #SUM queries
+     *  term-at-a-time.
+     *  @return True if TermAtATime is used.
+     */
+    public boolean isTermAtATime() {
+        return this.termAtATime;
+    }
+
+    /**
+     *  Get the length of the specified field in the specified document.
+     *  @param fieldName Name of field to access lengths.
+     *  @param docid The internal docid in the Lucene index.
+     *  @return the length of the field, including stopword positions.
+     *  @throws IllegalArgumentException The docid isn't in the index.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public long getFieldLength(String fieldName, int docid)
+            throws IOException {
+
+        FieldLengths lengths = this.fieldLengths;
+
+        if (lengths != null) {
+            int length = lengths.getLength(fieldName, docid);
+
+            if (length >= 0)
+                return length;
+        }
+
+        int leaf = this.getLeafIndex(docid);
+
+        if (leaf < 0)
+            throw new IllegalArgumentException("Docid " + docid + " is not in the index.");
+
+        HashMap<String, NumericDocValues[]> threadNorms = this.leafNorms.get();
+        NumericDocValues[] norms = threadNorms.get(fieldName);
+
+        if (norms == null) {
+            norms = new NumericDocValues[this.leaves.length];
+            threadNorms.put(fieldName, norms);
+        }
+
+        int leafDocid = docid - this.docBases[leaf];
+
+        if (norms[leaf] == NO_NORMS)
+            return 0;
+
+        if ((norms[leaf] == null) || (norms[leaf].docID() > leafDocid)) {
+            norms[leaf] = this.leaves[leaf].reader().getNormValues(fieldName);
+
+            if (norms[leaf] == null) {
+                norms[leaf] = NO_NORMS;
+                return 0;
+            }
+        }
+
+        return norms[leaf].advanceExact(leafDocid) ? norms[leaf].longValue() : 0;
+    }
+
+    /**
+     *  Get the memory-mapped inverted lists of frequent query terms.
+     *  @return the hot postings file, or null if there is none.
+     */
+    public HotPostingsFile getHotPostings() {
+        return this.hotPostings;
+    }
+
+    /**
+     *  Get the version of the index.  Sidecar files that are derived
+     *  from the index are only valid for the version that they were
+     *  built from.
+     *  @return The index version, or 0 if the index is not versioned.
+     */
+    public long getIndexVersion() {
+
+        if (this.reader instanceof DirectoryReader)
+            return ((DirectoryReader) this.reader).getVersion();
+
+        return 0;
+    }
+
+    /**
+     *  Get the internal document id for a document specified by its
+     *  external id, e.g. clueweb09-enwp00-88-09710.  If no such document
+     *  exists, throw an exception.
+     *  @param externalId The external docid in the Lucene index.
+     *  @return the internal docid.
+     *  @throws Exception Could not read the internal document id from the index.
+     */
+    public int getInternalDocid(String externalId) throws Exception {
+
+        ExternalIds ids = this.externalIds;
+
+        if (ids != null) {
+            int internalId = ids.getInternalDocid(externalId);
+
+            if (internalId == -1)
+                throw new Exception("External id " + externalId + " not found.");
+
+            if (internalId == -2)
+                throw new Exception("Multiple matches for external id " + externalId);
+
+            return internalId;
+        }
+
+        Term term = new Term(externalIdField, externalId);
+
+        if (this.reader.docFreq(term) > 1)
+            throw new Exception("Multiple matches for external id " + externalId);
+
+        for (LeafReaderContext leafContext : this.leaves) {
+            PostingsEnum postings = leafContext.reader().postings(term);
+
+            if ((postings != null) &&
+                (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS))
+                return leafContext.docBase + postings.docID();
+        }
+
+        throw new Exception("External id " + externalId + " not found.");
+    }
+
+    /**
+     *  Get the length normalization tables of the index.
+     *  @return the tables.
+     */
+    public LengthNorms getLengthNorms() {
+        return this.lengthNorms;
+    }
+
+    /**
+     *  Get the total number of documents in the corpus.
+     *  @return The total number of documents.
+     */
+    public long getNumDocs() {
+        return this.reader.numDocs();
+    }
+
+    /**
+     *  Get the directory that contains the index.
+     *  @return the index path.
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     *  Get the Lucene index.
+     *  @return the IndexReader.
+     */
+    public IndexReader getReader() {
+        return this.reader;
+    }
+
+    /**
+     *  Get the collection term frequency (ctf) of a term in a field
+     *  (e.g., the total number of times the term 'apple' occurs in
+     *  title fields).
+     *  @param fieldName The field name.
+     *  @param term The term.
+     *  @return The total number of term occurrences.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public long getTotalTermFreq(String fieldName, String term)
+            throws IOException {
+        return this.reader.totalTermFreq(new Term(fieldName, new BytesRef(term)));
+    }
+
+    /**
+     *  Find the segment that contains a document by binary search of
+     *  the segments' first docids, as ReaderUtil.subIndex does.  A
+     *  segment spans maxDoc docids, including deleted documents.
+     *  @param docid An internal document id
+     *  @return the index of the segment in reader.leaves(), or -1
+     */
+    private int getLeafIndex(long docid) {
+
+        if ((docid < 0) || (docid >= this.docBases[this.leaves.length]))
+            return -1;
+
+        //  Find the last segment whose first docid is <= docid.  Empty
+        //  segments have the same first docid as the next segment, so
+        //  they are skipped.
+
+        int lo = 0;
+        int hi = this.leaves.length - 1;
+
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+
+            if (this.docBases[mid] <= docid)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     *  Choose whether processQuery evaluates flat BM25 #SUM queries of
+     *  terms with BlockMaxWand when only the top k documents are needed.
+     *  @param enable True to use this evaluator.
+     */
+    public void setBlockMaxWand(boolean enable) {
+        this.blockMaxWand = enable;
+    }
+
+    /**
+     *  Choose whether the inverted lists of operators that have
+     *  arguments (e.g., #SYN, #NEAR/n) are stored block-compressed.
+     *  @param compress True to compress derived inverted lists.
+     */
+    public void setCompressDerivedLists(boolean compress) {
+        this.compressDerivedLists = compress;
+    }
+
+    /**
+     *  Read external ids from a table instead of the stored fields.
+     *  @param ids The external ids of the index, or null to read
+     *         external ids from the stored fields.
+     */
+    public void setExternalIds(ExternalIds ids) {
+        this.externalIds = ids;
+    }
+
+    /**
+     *  Read field lengths from dense arrays instead of the norms.
+     *  @param lengths The field lengths of the index, or null to read
+     *         field lengths from the norms.
+     */
+    public void setFieldLengths(FieldLengths lengths) {
+        this.fieldLengths = lengths;
+    }
+
+    /**
+     *  Cache TERM inverted lists across queries, up to a memory budget.
+     *  @param maxBytes The memory budget in bytes, or 0 to disable caching.
+     */
+    public void setInvListCacheSize(long maxBytes) {
+        this.invListCache = (maxBytes > 0) ?
+                new InvListCache("InvList cache", maxBytes) : null;
+    }
+
+    /**
+     *  Choose whether processQuery evaluates flat BM25 #SUM queries
+     *  with MaxScore when only the top k documents are needed.
+     *  @param enable True to use this evaluator.
+     */
+    public void setMaxScore(boolean enable) {
+        this.maxScore = enable;
+    }
+
+    /**
+     *  Cache the inverted lists of operators that have arguments (e.g.,
+     *  #SYN, #NEAR/n) across queries, up to a memory budget.
+     *  @param maxBytes The memory budget in bytes, or 0 to disable caching.
+     */
+    public void setQryIopCacheSize(long maxBytes) {
+        this.qryIopCache = (maxBytes > 0) ?
+                new InvListCache("QryIop cache", maxBytes) : null;
+    }
+
+    /**
+     *  Read the segments of long inverted lists in parallel.  The
+     *  threads are daemon threads that are shared by all queries.
+     *  @param threads The number of threads, or 1 or less to read
+     *         segments sequentially.
+     */
+    public synchronized void setSegmentThreads(int threads) {
+
+        if (this.segmentExecutor != null) {
+            this.segmentExecutor.shutdown();
+        }
+
+        if (threads <= 1) {
+            this.segmentExecutor = null;
+            return;
+        }
+
+        this.segmentExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "segment-reader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     *  Choose whether TERM operators iterate over Lucene postings
+     *  directly (the default) or materialize their inverted lists.
+     *  @param stream True to iterate over Lucene postings directly.
+     */
+    public void setStreamPostings(boolean stream) {
+        this.streamPostings = stream;
+    }
+
+    /**
+     *  Choose whether processQuery evaluates flat BM25 #SUM queries
+     *  term-at-a-time.
+     *  @param enable True to use TermAtATime.
+     */
+    public void setTermAtATime(boolean enable) {
+        this.termAtATime = enable;
+    }
+
+    /**
+     *  Set the type of accumulators that TermAtATime uses.  Auto uses
+     *  sparse accumulators if the query's inverted lists have few
+     *  postings relative to the size of the index.
+     *  @param type "dense", "sparse", or "auto".
+     *  @throws IllegalArgumentException The type is not recognized.
+     */
+    public void setTermAtATimeAccumulators(String type) {
+
+        type = type.toLowerCase();
+
+        if (!(type.equals("dense") || type.equals("sparse") ||
+              type.equals("auto")))
+            throw new IllegalArgumentException
+                    ("termAtATimeAccumulators must be dense, sparse, or auto.");
+
+        this.termAtATimeAccumulators = type;
+    }
+
+    /**
+     *  Serve the inverted lists of frequent query terms from a
+     *  memory-mapped hot postings file.
+     *  @param file The hot postings file, or null to read all inverted
+     *         lists from the index.
+     */
+    public void setHotPostings(HotPostingsFile file) {
+        this.hotPostings = file;
+    }
+
+    /**
+     *  Get a short description of the index.
+     *  @return A description.
+     */
+    public String toString() {
+        return "Index " + this.path + ":  " + this.reader.maxDoc() +
+                " documents in " + this.leaves.length + " segments";
+    }
+}
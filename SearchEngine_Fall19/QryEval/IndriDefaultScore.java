@@ -0,0 +1,426 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ *  The Indri default score of a query subtree, compiled so that it can
+ *  be computed for a document without walking the subtree.
+ *  <p>
+ *  The default score of #SCORE (t) for a document is
+ *  lambda * mle + (1 - lambda) * mu * mle / (docLength + mu), so the
+ *  default score of a subtree depends only on the document's field
+ *  lengths.  The subtree is compiled into a postfix program: each
+ *  #SCORE is a leaf that holds its two constants and the Indri length
+ *  normalization table of its field, and each #AND, #WAND, #WSUM, and
+ *  #OR is an instruction that combines the values of its arguments.
+ *  If all of the leaves use the same field, the score is a function of
+ *  one field length, so scores are also remembered by field length.
+ *  If the model scores with log probabilities, the program computes
+ *  the log of the default score with the same arithmetic as the query
+ *  operators' log-space getDefaultScore methods.
+ *  </p><p>
+ *  A query is compiled once, by its root.  The postfix program of a
+ *  subtree is a contiguous part of the root's program, so each #AND,
+ *  #WAND, #WSUM, and #OR in the query gets an IndriDefaultScore that
+ *  runs its part of the shared program.  The remembered scores are
+ *  shared too:  for each field length, the value of every instruction.
+ *  </p>
+ */
+public class IndriDefaultScore {
+
+    //  --------------- Constants and variables -----------------------
+
+    private static final int LEAF = 0;
+    private static final int AND = 1;
+    private static final int WAND = 2;
+    private static final int WSUM = 3;
+    private static final int OR = 4;
+
+    /**
+     *  Scores are remembered for field lengths below this value.
+     */
+    private static final int MAX_MEMO_LENGTH = 1 << 20;
+
+    /**
+     *  The program of the whole query.
+     */
+    private final Program program;
+
+    /**
+     *  The instructions of this subtree are program[start] ...
+     *  program[end-1].  The last one computes the subtree's score.
+     */
+    private final int start;
+    private final int end;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Constructor.
+     *  @param program The program of the whole query.
+     *  @param start The first instruction of the subtree.
+     *  @param end The instruction after the last one of the subtree.
+     */
+    private IndriDefaultScore(Program program, int start, int end) {
+        this.program = program;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     *  Compile the default score of a query, and give each #AND, #WAND,
+     *  #WSUM, and #OR in the query the compiled default score of its
+     *  subtree (or null if its subtree can't be compiled).
+     *  @param q The root of the query.
+     *  @param r The Indri retrieval model.
+     *  @return The compiled default score of the query, or null if the
+     *          query has an operator that can't be compiled.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static IndriDefaultScore compile(QrySop q, RetrievalModelIndri r)
+            throws IOException {
+
+        Program program = new Program();
+
+        add(program, q);
+
+        program.stack = new double[Math.max(1, program.size)];
+        program.logSpace = r.isLogSpace();
+
+        if ((program.field != null) && !program.mixedFields) {
+            program.lengths =
+                    r.getIndexContext().getLengthNorms().getLengths(program.field);
+            program.memo = new double[64][];
+        }
+
+        return q.indriDefault;
+    }
+
+    /**
+     *  Add a subtree to the program.  Every argument is added, even if
+     *  an earlier one can't be compiled, so that every subtree that can
+     *  be compiled gets a default score.
+     *  @param program The program.
+     *  @param q The root of the subtree.
+     *  @return True if the subtree can be compiled.
+     */
+    private static boolean add(Program program, Qry q) {
+
+        int start = program.size;
+        boolean valid = true;
+
+        if (!(q instanceof QrySopScore)) {
+            for (Qry q_i : q.args) {
+                if (!add(program, q_i))
+                    valid = false;
+            }
+        }
+
+        if (q instanceof QrySopScore) {
+            QrySopScore s = (QrySopScore) q;
+
+            if (s.getIndriNorms() == null)
+                return false;
+
+            int i = program.grow();
+            String f = s.getArg(0).getField();
+
+            program.kinds[i] = LEAF;
+            program.base[i] = s.getIndriDefaultBase();
+            program.scale[i] = s.getIndriDefaultScale();
+            program.norms[i] = s.getIndriNorms();
+
+            if (program.field == null)
+                program.field = f;
+            else if (!program.field.equals(f))
+                program.mixedFields = true;
+
+            return true;
+        }
+
+        int kind = -1;
+
+        if (q instanceof QrySopAnd) {
+            kind = AND;
+        } else if (q instanceof QrySopOr) {
+            kind = OR;
+        } else if ((q instanceof QrySopWand) || (q instanceof QrySopWsum)) {
+            kind = (q instanceof QrySopWand) ? WAND : WSUM;
+
+            if (((QrySopW) q).getSizeofWeight() != q.args.size())
+                valid = false;
+        } else {
+            valid = false;
+        }
+
+        if (!valid) {
+            if (q instanceof QrySop)
+                ((QrySop) q).indriDefault = null;
+
+            return false;
+        }
+
+        int i = program.grow();
+
+        program.kinds[i] = kind;
+        program.counts[i] = q.args.size();
+
+        if ((kind == WAND) || (kind == WSUM)) {
+            QrySopW w = (QrySopW) q;
+
+            program.weights[i] = new double[q.args.size()];
+            program.sumWeights[i] = w.getSumofWeight();
+
+            for (int j = 0; j < q.args.size(); j++)
+                program.weights[i][j] = w.getWeight(j);
+        }
+
+        ((QrySop) q).indriDefault = new IndriDefaultScore(program, start, program.size);
+        return true;
+    }
+
+    /**
+     *  Get the default score of the subtree for a document.
+     *  @param docid The internal docid of the document.
+     *  @return The default score.
+     */
+    public double score(int docid) {
+
+        Program p = this.program;
+
+        if (p.memo == null)
+            return this.evaluate(docid, null);
+
+        int length = p.lengths.get(docid);
+
+        if (length >= MAX_MEMO_LENGTH)
+            return this.evaluate(docid, null);
+
+        if (length >= p.memo.length) {
+            p.memo = Arrays.copyOf(p.memo,
+                    Math.min(MAX_MEMO_LENGTH, Math.max(length + 1, p.memo.length * 2)));
+        }
+
+        double[] row = p.memo[length];
+
+        if (row == null) {
+            row = new double[p.size];
+            Arrays.fill(row, Double.NaN);
+            p.memo[length] = row;
+        }
+
+        double score = row[this.end - 1];
+
+        if (Double.isNaN(score))
+            score = this.evaluate(docid, row);
+
+        return score;
+    }
+
+    /**
+     *  Run the subtree's part of the program for a document.  The
+     *  arithmetic matches the getDefaultScore methods of the query
+     *  operators.
+     *  @param docid The internal docid of the document.
+     *  @param row Where to remember the value of each instruction, or null.
+     *  @return The default score.
+     */
+    private double evaluate(int docid, double[] row) {
+
+        Program p = this.program;
+
+        if (p.logSpace)
+            return this.evaluateLogs(docid, row);
+
+        double[] stack = p.stack;
+        int sp = 0;
+
+        for (int i = this.start; i < this.end; i++) {
+
+            if (p.kinds[i] == LEAF) {
+                stack[sp] = p.base[i] + p.scale[i] * p.norms[i][docid];
+
+                if (row != null)
+                    row[i] = stack[sp];
+
+                sp++;
+                continue;
+            }
+
+            int n = p.counts[i];
+            int first = sp - n;
+            double score;
+
+            switch (p.kinds[i]) {
+                case AND:
+                    score = 1.0;
+                    for (int j = 0; j < n; j++)
+                        score *= stack[first + j];
+                    score = Math.pow(score, 1.0 / n);
+                    break;
+                case WAND:
+                    score = 1.0;
+                    for (int j = 0; j < n; j++)
+                        score *= Math.pow(stack[first + j], p.weights[i][j] / p.sumWeights[i]);
+                    break;
+                case WSUM:
+                    score = 0.0;
+                    for (int j = 0; j < n; j++)
+                        score += p.weights[i][j] * stack[first + j] / p.sumWeights[i];
+                    break;
+                default:        // OR
+                    double multi = 1.0;
+                    for (int j = 0; j < n; j++)
+                        multi *= (1 - stack[first + j]);
+                    score = 1 - multi;
+                    break;
+            }
+
+            if (row != null)
+                row[i] = score;
+
+            sp = first;
+            stack[sp++] = score;
+        }
+
+        return stack[0];
+    }
+
+    /**
+     *  Run the subtree's part of the program for a document in log space.
+     *  @param docid The internal docid of the document.
+     *  @param row Where to remember the value of each instruction, or null.
+     *  @return The log of the default score.
+     */
+    private double evaluateLogs(int docid, double[] row) {
+
+        Program p = this.program;
+        double[] stack = p.stack;
+        int sp = 0;
+
+        for (int i = this.start; i < this.end; i++) {
+
+            if (p.kinds[i] == LEAF) {
+                stack[sp] = Math.log(p.base[i] + p.scale[i] * p.norms[i][docid]);
+
+                if (row != null)
+                    row[i] = stack[sp];
+
+                sp++;
+                continue;
+            }
+
+            int n = p.counts[i];
+            int first = sp - n;
+            double score;
+
+            switch (p.kinds[i]) {
+                case AND:
+                    score = 0.0;
+                    for (int j = 0; j < n; j++)
+                        score += stack[first + j];
+                    score = score / n;
+                    break;
+                case WAND:
+                    score = 0.0;
+                    for (int j = 0; j < n; j++)
+                        score += (p.weights[i][j] / p.sumWeights[i]) * stack[first + j];
+                    break;
+                case WSUM:
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int j = 0; j < n; j++)
+                        max = Math.max(max, stack[first + j]);
+                    if (max == Double.NEGATIVE_INFINITY) {
+                        score = max;
+                        break;
+                    }
+                    double sum = 0.0;
+                    for (int j = 0; j < n; j++)
+                        sum += (p.weights[i][j] / p.sumWeights[i]) *
+                                Math.exp(stack[first + j] - max);
+                    score = max + Math.log(sum);
+                    break;
+                default:        // OR
+                    double multi = 1.0;
+                    for (int j = 0; j < n; j++)
+                        multi *= (1 - Math.exp(stack[first + j]));
+                    score = Math.log(1 - multi);
+                    break;
+            }
+
+            if (row != null)
+                row[i] = score;
+
+            sp = first;
+            stack[sp++] = score;
+        }
+
+        return stack[0];
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  The compiled program of a query, in postfix order.  Leaves use
+     *  base, scale, and norms; other instructions use count and weights.
+     */
+    private static class Program {
+
+        private int size = 0;
+        private int[] kinds = new int[8];
+        private int[] counts = new int[8];
+        private double[] base = new double[8];
+        private double[] scale = new double[8];
+        private double[][] norms = new double[8][];
+        private double[][] weights = new double[8][];
+        private double[] sumWeights = new double[8];
+
+        /**
+         *  The evaluation stack.
+         */
+        private double[] stack;
+
+        /**
+         *  True if scores are log probabilities.
+         */
+        private boolean logSpace = false;
+
+        /**
+         *  The field of every leaf, or null if the leaves use different fields.
+         */
+        private String field = null;
+        private boolean mixedFields = false;
+
+        //  The value of every instruction by field length, if all
+        //  leaves use one field.  A row is null until a document with
+        //  that length is scored, and NaN marks a value that hasn't
+        //  been computed.
+
+        private IntBuffer lengths = null;
+        private double[][] memo = null;
+
+        /**
+         *  Add an empty instruction to the end of the program.
+         *  @return The index of the instruction.
+         */
+        private int grow() {
+
+            if (this.size == this.kinds.length) {
+                int n = this.size * 2;
+                this.kinds = Arrays.copyOf(this.kinds, n);
+                this.counts = Arrays.copyOf(this.counts, n);
+                this.base = Arrays.copyOf(this.base, n);
+                this.scale = Arrays.copyOf(this.scale, n);
+                this.norms = Arrays.copyOf(this.norms, n);
+                this.weights = Arrays.copyOf(this.weights, n);
+                this.sumWeights = Arrays.copyOf(this.sumWeights, n);
+            }
+
+            return this.size++;
+        }
+    }
+}
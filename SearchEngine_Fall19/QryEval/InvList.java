@@ -3,6 +3,7 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 import org.apache.lucene.index.*;
@@ -14,73 +15,57 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in columns of primitive arrays rather than as
+ *  one object per posting.  The n'th posting is described by
+ *  docids[n] and tfs[n]; its positions are stored in
+ *  positions[positionOffsets[n]] ... positions[positionOffsets[n+1]-1].
+ *  Use getDocid, getTf, and getPosition to read a posting.
+ *  </p><p>
+ *  InvList is the only kind of PostingList that postings can be
+ *  appended to.  Query operators build their results in an InvList.
+ *  </p>
  */
-public class InvList {
+public class InvList extends PostingList {
 
     //  --------------- Constants and variables -----------------------
 
     /**
-     *  Collection term frequency: The number of times that a term
-     *  occurs across all instances of the specified field.
+     *  The initial capacity of the posting and position arrays when
+     *  the final size of the list is not known in advance.
      */
-    public int ctf = 0;
+    private static final int INITIAL_CAPACITY = 16;
 
     /**
-     *  Document frequency: The number of documents that have the term
-     *  in the specified field.
+     *  Lists that have fewer postings than this are read one segment
+     *  at a time, even if the index has a segment executor, because
+     *  handing the work to other threads would cost more than it saves.
      */
-    public int df = 0;
+    private static final int PARALLEL_MIN_DF = 4096;
 
     /**
-     *  The field covered by the inverted list.
+     *  The internal id of each document that contains the term in
+     *  the specified field, in ascending order.
      */
-    public String field;
+    private int[] docids;
 
     /**
-     *  Postings that contain information about the occurrence of the
-     *  term in individual documents.
+     *  Term frequency:  The number of times the term occurs in the
+     *  specified field of each document.
      */
-    public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-    //  --------------- Nested classes --------------------------------
+    private int[] tfs;
 
     /**
-     *  Utility class that makes it easier to construct postings.
+     *  The index in positions of the first location of each posting.
+     *  It has df+1 valid entries, so the last posting's positions end
+     *  at positionOffsets[df].
      */
-    public class DocPosting {
-
-        /**
-         *  The internal id of a document that contains the term in
-         *  the specified field.
-         */
-        public int docid = 0;
-
-        /**
-         *  Term frequency:  The number of times the term occurs in
-         *  the specified field of the document.
-         */
-        public int tf = 0;
-
-        /**
-         *  The locations where the term occurs in the specified field
-         *  of the document.
-         */
-        public Vector<Integer> positions = new Vector<Integer>();
+    private int[] positionOffsets;
 
-        public DocPosting(int d, int... locations) {
-            this.docid = d;
-            this.tf = locations.length;
-            for (int i = 0; i < locations.length; i++)
-                this.positions.add(locations[i]);
-        }
-
-        public DocPosting(int d, List<Integer> locations) {
-            this.docid = d;
-            this.tf = locations.size();
-            for (int i = 0; i < locations.size(); i++)
-                this.positions.add(locations.get(i));
-        }
-    }
+    /**
+     *  The locations where the term occurs, for all postings.
+     */
+    private int[] positions;
 
     //  --------------- Methods ---------------------------------------
 
@@ -88,6 +73,7 @@ public class InvList {
      *  Constructor.  An empty inverted list. Useful for some query operators.
      */
     public InvList() {
+        this.allocate(INITIAL_CAPACITY, INITIAL_CAPACITY);
     }
 
     /**
@@ -95,16 +81,45 @@ public class InvList {
      *  @param fieldString The field that the term occurs in.
      */
     public InvList(String fieldString) {
+        this();
         this.field = new String(fieldString);
     }
 
     /**
-     *  Get an inverted list from the index.
+     *  Get an empty inverted list with the specified capacity.
+     *  @param fieldString The field that the term occurs in.
+     *  @param postingCapacity The number of postings to allocate.
+     *  @param positionCapacity The number of positions to allocate.
+     */
+    private InvList(String fieldString, int postingCapacity, int positionCapacity) {
+        this.allocate(postingCapacity, positionCapacity);
+        this.field = fieldString;
+    }
+
+    /**
+     *  Get an inverted list from an index.
+     *  @param index The index.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public InvList(IndexContext index, String termString, String fieldString)
+            throws IOException {
+        this(index, termString, fieldString, true);
+    }
+
+    /**
+     *  Get an inverted list from an index.  A frequency-only list has
+     *  docids and tfs but no positions; it is cheaper to read, and it
+     *  is sufficient for operators that never use the locIterator.
+     *  @param index The index.
      *  @param termString The processed (stemmed, lower-cased, etc) term string.
      *  @param fieldString The field that the term occurs in.
+     *  @param withPositions False to read a frequency-only list.
      *  @throws IOException Error accessing the Lucene index.
      */
-    public InvList(String termString, String fieldString) throws IOException {
+    public InvList(IndexContext index, String termString, String fieldString,
+                   boolean withPositions) throws IOException {
 
         //  Store the field name.  This is used by other query operators.
 
@@ -115,38 +130,191 @@ public class InvList {
         BytesRef termBytes = new BytesRef(termString);
         Term term = new Term(fieldString, termBytes);
 
-        if (Idx.INDEXREADER.docFreq(term) < 1)
+        IndexReader reader = index.getReader();
+        int termDf = reader.docFreq(term);
+
+        if (termDf < 1) {
+            this.allocate(0, 0);
             return;
+        }
+
+        //  The index knows how large the list is, so the arrays can be
+        //  allocated once at their final size.
+
+        long termCtf = withPositions ? reader.totalTermFreq(term) : 0;
+        this.allocate(termDf, (int) Math.max(0, Math.min(termCtf, Integer.MAX_VALUE - 8)));
 
         //  Lucene indexes have segments, so postings must be retrieved
-        //  from each segment.  Some segments may have no postings.
+        //  from each segment.  Some segments may have no postings.  Long
+        //  lists in multi-segment indexes may be read in parallel.
+
+        List<LeafReaderContext> leaves = reader.leaves();
+        ExecutorService executor = index.getSegmentExecutor();
+
+        if ((executor != null) && (leaves.size() > 1) &&
+                (termDf >= PARALLEL_MIN_DF)) {
+            this.readLeavesInParallel(executor, leaves, term, withPositions);
+        } else {
+            for (LeafReaderContext context : leaves) {
+                this.readLeaf(context, term, withPositions);
+            }
+        }
+    }
+
+    /**
+     *  Append the postings of a term in one segment to the list.
+     *  @param context The segment.
+     *  @param term The term.
+     *  @param withPositions False to read frequency-only postings.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void readLeaf(LeafReaderContext context, Term term, boolean withPositions)
+            throws IOException {
+
+        int flags = withPositions ? PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+        PostingsEnum postings = context.reader().postings(term, flags);
+
+        if (postings == null)
+            return;
 
-        for (LeafReaderContext context : Idx.INDEXREADER.leaves()) {
+        //  Convert from Lucene inverted list format to our inverted
+        //  list format. This is a little inefficient, but allows query
+        //  operators such as #SYN and #NEAR/n to be insulated from the
+        //  details of Lucene inverted list implementations.
 
-            PostingsEnum postings =
-                    context.reader().postings(term, PostingsEnum.POSITIONS);
+        while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
-            if (postings != null) {
+            int tf = postings.freq();
 
-                //  Convert from Lucene inverted list format to our inverted
-                //  list format. This is a little inefficient, but allows query
-                //  operators such as #SYN and #NEAR/n to be insulated from the
-                //  details of Lucene inverted list implementations.
+            if (!withPositions) {
+                this.appendPosting(context.docBase + postings.docID(), tf);
+                continue;
+            }
 
-                while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            this.ensureCapacity(this.df + 1, this.ctf + tf);
 
-                    int docid = context.docBase + postings.docID();
-                    int tf = postings.freq();
-                    int[] positions = new int[tf];
+            this.docids[this.df] = context.docBase + postings.docID();
+            this.tfs[this.df] = tf;
 
-                    for (int j = 0; j < tf; j++)
-                        positions[j] = postings.nextPosition();
+            for (int j = 0; j < tf; j++)
+                this.positions[this.ctf + j] = postings.nextPosition();
 
-                    this.postings.add(new DocPosting(docid, positions));
-                    this.df++;
-                    this.ctf += tf;
+            this.df++;
+            this.ctf += tf;
+            this.positionOffsets[this.df] = this.ctf;
+        }
+    }
+
+    /**
+     *  Read the postings of a term in each segment concurrently, and
+     *  then concatenate the per-segment lists in docBase order.
+     *  @param executor The executor that reads the segments.
+     *  @param leaves The segments, in docBase order.
+     *  @param term The term.
+     *  @param withPositions False to read frequency-only postings.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void readLeavesInParallel(ExecutorService executor,
+                                      List<LeafReaderContext> leaves,
+                                      final Term term,
+                                      final boolean withPositions)
+            throws IOException {
+
+        List<Future<InvList>> parts = new ArrayList<Future<InvList>>(leaves.size());
+
+        for (final LeafReaderContext context : leaves) {
+            parts.add(executor.submit(new Callable<InvList>() {
+                public InvList call() throws IOException {
+                    int leafDf = context.reader().docFreq(term);
+
+                    if (leafDf < 1)
+                        return null;
+
+                    long leafCtf = withPositions ? context.reader().totalTermFreq(term) : 0;
+                    InvList part = new InvList(field, leafDf,
+                            (int) Math.min(leafCtf, Integer.MAX_VALUE - 8));
+                    part.readLeaf(context, term, withPositions);
+                    return part;
                 }
+            }));
+        }
+
+        //  Futures are collected in submission order, which is docBase order.
+
+        try {
+            for (Future<InvList> f : parts) {
+                InvList part = f.get();
+
+                if (part != null)
+                    this.appendList(part);
             }
+        } catch (InterruptedException ex) {
+            for (Future<InvList> f : parts)
+                f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading postings.");
+        } catch (ExecutionException ex) {
+            for (Future<InvList> f : parts)
+                f.cancel(true);
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     *  Append all of the postings of another list, whose docids are
+     *  larger than the docids of this list, to this list.
+     *  @param list The list to append.
+     */
+    private void appendList(InvList list) {
+
+        int positionCount = list.positionOffsets[list.df];
+        int positionBase = this.positionOffsets[this.df];
+
+        this.ensureCapacity(this.df + list.df, positionBase + positionCount);
+
+        System.arraycopy(list.docids, 0, this.docids, this.df, list.df);
+        System.arraycopy(list.tfs, 0, this.tfs, this.df, list.df);
+        System.arraycopy(list.positions, 0, this.positions, positionBase, positionCount);
+
+        for (int i = 1; i <= list.df; i++)
+            this.positionOffsets[this.df + i] = positionBase + list.positionOffsets[i];
+
+        this.df += list.df;
+        this.ctf += list.ctf;
+    }
+
+    /**
+     *  Allocate the posting and position arrays.
+     *  @param postingCapacity The number of postings to allocate.
+     *  @param positionCapacity The number of positions to allocate.
+     */
+    private void allocate(int postingCapacity, int positionCapacity) {
+        this.docids = new int[postingCapacity];
+        this.tfs = new int[postingCapacity];
+        this.positionOffsets = new int[postingCapacity + 1];
+        this.positions = new int[positionCapacity];
+    }
+
+    /**
+     *  Grow the arrays, if necessary, so that they can hold the
+     *  specified number of postings and positions.
+     *  @param postingCapacity The number of postings required.
+     *  @param positionCapacity The number of positions required.
+     */
+    private void ensureCapacity(int postingCapacity, int positionCapacity) {
+
+        if (postingCapacity > this.docids.length) {
+            int n = Math.max(postingCapacity, this.docids.length * 2);
+            this.docids = Arrays.copyOf(this.docids, n);
+            this.tfs = Arrays.copyOf(this.tfs, n);
+            this.positionOffsets = Arrays.copyOf(this.positionOffsets, n + 1);
+        }
+
+        if (positionCapacity > this.positions.length) {
+            int n = Math.max(positionCapacity, this.positions.length * 2);
+            this.positions = Arrays.copyOf(this.positions, n);
         }
     }
 
@@ -154,33 +322,91 @@ public class InvList {
      *  Append a posting to the posting list.  Posting must be appended
      *  in docid order, otherwise this method fails.
      *  @param docid The internal document id of the posting.
-     *  @param positions A list of positions where the term occurs.
+     *  @param locations An array of positions where the term occurs.
+     *  @param tf The number of entries of locations that are used.
      *  @return true if the posting was added successfully, otherwise false.
      */
-    public boolean appendPosting(int docid, List<Integer> positions) {
+    public boolean appendPosting(int docid, int[] locations, int tf) {
 
         //  A posting can only be appended if its docid is greater than
         //  the last docid.
 
-        if ((this.df > 1) &&
-                (this.postings.get(this.df - 1).docid >= docid))
+        if ((this.df > 0) &&
+                (this.docids[this.df - 1] >= docid))
+            return false;
+
+        this.ensureCapacity(this.df + 1, this.ctf + tf);
+
+        this.docids[this.df] = docid;
+        this.tfs[this.df] = tf;
+        System.arraycopy(locations, 0, this.positions, this.ctf, tf);
+
+        this.df++;
+        this.ctf += tf;
+        this.positionOffsets[this.df] = this.ctf;
+        return true;
+    }
+
+    /**
+     *  Append a posting that has a term frequency but no positions to
+     *  the posting list.  Posting must be appended in docid order,
+     *  otherwise this method fails.  A list that has frequency-only
+     *  postings can't be used by the locIterator.
+     *  @param docid The internal document id of the posting.
+     *  @param tf The term frequency of the posting.
+     *  @return true if the posting was added successfully, otherwise false.
+     */
+    public boolean appendPosting(int docid, int tf) {
+
+        if ((this.df > 0) &&
+                (this.docids[this.df - 1] >= docid))
             return false;
 
-        DocPosting newPosting = new DocPosting(docid, positions);
+        this.ensureCapacity(this.df + 1, 0);
+
+        this.docids[this.df] = docid;
+        this.tfs[this.df] = tf;
 
-        this.postings.add(newPosting);
         this.df++;
-        this.ctf += newPosting.tf;
+        this.ctf += tf;
+        this.positionOffsets[this.df] = this.positionOffsets[this.df - 1];
         return true;
     }
 
+    /**
+     *  Append a posting to the posting list.  Posting must be appended
+     *  in docid order, otherwise this method fails.
+     *  @param docid The internal document id of the posting.
+     *  @param positions A list of positions where the term occurs.
+     *  @return true if the posting was added successfully, otherwise false.
+     */
+    public boolean appendPosting(int docid, List<Integer> positions) {
+
+        int[] locations = new int[positions.size()];
+
+        for (int i = 0; i < locations.length; i++)
+            locations[i] = positions.get(i);
+
+        return this.appendPosting(docid, locations, locations.length);
+    }
+
     /**
      *  Get the n'th document id from the inverted list.
-     *  @param docid The index of the requested document.
+     *  @param n The index of the requested document.
      *  @return The internal document id.
      */
-    public int getDocid(int docid) {
-        return this.postings.get(docid).docid;
+    public int getDocid(int n) {
+        return this.docids[n];
+    }
+
+    /**
+     *  Get the j'th position in the n'th document of the inverted list.
+     *  @param n The index of the requested document.
+     *  @param j The index of the requested position in the document.
+     *  @return The position.
+     */
+    public int getPosition(int n, int j) {
+        return this.positions[this.positionOffsets[n] + j];
     }
 
     /**
@@ -189,25 +415,40 @@ public class InvList {
      *  @return The document's term frequency.
      */
     public int getTf(int n) {
-        return this.postings.get(n).tf;
+        return this.tfs[n];
     }
 
     /**
-     *  Print the inverted list.  This is handy for debugging.
+     *  Determine whether the list stores the positions of its postings.
+     *  @return False if the list has frequency-only postings.
      */
-    public void print() {
+    public boolean hasPositions() {
+        return (this.positionOffsets[this.df] == this.ctf);
+    }
 
-        System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
+    /**
+     *  Estimate the amount of heap memory that the list uses.
+     *  @return The estimated size of the list in bytes.
+     */
+    public long ramBytesUsed() {
+        return 64L + 4L * ((long) this.docids.length + this.tfs.length
+                + this.positionOffsets.length + this.positions.length);
+    }
 
-        for (int i = 0; i < this.df; i++) {
-            System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-                    + this.postings.elementAt(i).tf + ", locs: ");
+    /**
+     *  Release unused capacity in the posting and position arrays.
+     *  Query operators call this after they finish building a list.
+     */
+    public void trimToSize() {
 
-            for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-                System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
-            }
+        if (this.docids.length > this.df) {
+            this.docids = Arrays.copyOf(this.docids, this.df);
+            this.tfs = Arrays.copyOf(this.tfs, this.df);
+            this.positionOffsets = Arrays.copyOf(this.positionOffsets, this.df + 1);
+        }
 
-            System.out.println();
+        if (this.positions.length > this.positionOffsets[this.df]) {
+            this.positions = Arrays.copyOf(this.positions, this.positionOffsets[this.df]);
         }
     }
 }
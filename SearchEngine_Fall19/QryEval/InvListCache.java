@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A cache of inverted lists that is shared by all queries.  Lists are
+ *  keyed by (index, canonical form of the query operator that produced
+ *  them; see QryIop.getCanonicalForm), so a term or a subtree such as
+ *  #NEAR/1 (barack obama) that occurs in many queries (or in the
+ *  original, expanded, and intent versions of one query) is evaluated
+ *  once per index.
+ *  <p>
+ *  The cache has a memory budget in bytes.  When a new list does not
+ *  fit, the least recently used lists are evicted until it does.  Lists
+ *  that are larger than the whole budget are not cached.  All entries
+ *  for an index are dropped when its IndexReader is closed.
+ *  </p><p>
+ *  The cache is thread-safe.  Cached lists are shared, which is safe
+ *  because a PostingList is not modified after it is built; iteration
+ *  state is kept by the QryIop operators that read the list, and
+ *  lists that keep decoding state hand out independent views.
+ *  </p>
+ */
+public class InvListCache {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     *  The name of the cache, used when statistics are reported.
+     */
+    private final String name;
+
+    /**
+     *  The maximum number of bytes of inverted lists to keep.
+     */
+    private final long maxBytes;
+
+    /**
+     *  The number of bytes of inverted lists that are cached now.
+     */
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     *  The cached lists, in least-recently-used order.
+     */
+    private final LinkedHashMap<Key, Entry> lists =
+            new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+
+    /**
+     *  The indexes whose close events the cache listens for.
+     */
+    private final Set<Object> listenedIndexes = new HashSet<Object>();
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  A cache key:  An index and the canonical form of a query operator.
+     */
+    private static class Key {
+
+        private final Object index;
+        private final String form;
+
+        private Key(Object index, String form) {
+            this.index = index;
+            this.form = form;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key k = (Key) o;
+            return (this.index == k.index) && this.form.equals(k.form);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.index) + this.form.hashCode();
+        }
+    }
+
+    /**
+     *  A cached list and the size that was charged to the budget when
+     *  it was added.  Lists that keep decoding state may grow after
+     *  they are added, so the size is not recomputed when the list is
+     *  removed.
+     */
+    private static class Entry {
+
+        private final PostingList list;
+        private final long size;
+
+        private Entry(PostingList list, long size) {
+            this.list = list;
+            this.size = size;
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Constructor.
+     *  @param name The name of the cache, used when statistics are reported.
+     *  @param maxBytes The memory budget of the cache, in bytes.
+     */
+    public InvListCache(String name, long maxBytes) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     *  Get a cached inverted list of an index.
+     *  @param index The index.
+     *  @param form The canonical form of the query operator.
+     *  @return A view of the inverted list, or null if it is not cached.
+     */
+    public synchronized PostingList get(IndexContext index, String form) {
+
+        Entry entry = this.lists.get(new Key(indexKey(index.getReader()), form));
+
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+
+        this.hits++;
+        return entry.list.view();
+    }
+
+    /**
+     *  Add an inverted list of an index to the cache, evicting older
+     *  lists if necessary.  The list must not be modified or iterated
+     *  afterwards; readers use views of it (see get).  If two threads evaluate the same operator at once, the second one
+     *  to finish replaces the first one's list.
+     *  @param index The index.
+     *  @param form The canonical form of the query operator.
+     *  @param list The inverted list.
+     */
+    public synchronized void put(IndexContext index, String form, PostingList list) {
+
+        long size = list.ramBytesUsed();
+
+        if (size > this.maxBytes)
+            return;
+
+        IndexReader reader = index.getReader();
+        this.listenForClose(reader);
+
+        Entry old = this.lists.put(new Key(indexKey(reader), form), new Entry(list, size));
+
+        if (old != null)
+            this.bytes -= old.size;
+
+        this.bytes += size;
+
+        Iterator<Entry> lru = this.lists.values().iterator();
+
+        while (this.bytes > this.maxBytes) {
+            this.bytes -= lru.next().size;
+            lru.remove();
+            this.evictions++;
+        }
+    }
+
+    /**
+     *  Drop every cached list.
+     */
+    public synchronized void clear() {
+        this.lists.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     *  Drop every cached list that was read from the specified index.
+     *  @param index The index key (see indexKey).
+     */
+    private synchronized void invalidate(Object index) {
+
+        Iterator<Map.Entry<Key, Entry>> it = this.lists.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+
+            if (entry.getKey().index == index) {
+                this.bytes -= entry.getValue().size;
+                it.remove();
+            }
+        }
+
+        this.listenedIndexes.remove(index);
+    }
+
+    /**
+     *  Get the object that identifies an index in cache keys.  Lucene's
+     *  reader cache key is used when the reader has one.
+     *  @param reader An IndexReader.
+     *  @return The object that identifies the index.
+     */
+    private static Object indexKey(IndexReader reader) {
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+        return (helper != null) ? helper.getKey() : reader;
+    }
+
+    /**
+     *  Make sure that the lists of an index are dropped when it is closed.
+     *  @param reader An IndexReader.
+     */
+    private void listenForClose(IndexReader reader) {
+
+        final Object index = indexKey(reader);
+
+        if (!this.listenedIndexes.add(index))
+            return;
+
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+
+        if (helper != null) {
+            helper.addClosedListener(closedKey -> this.invalidate(index));
+        }
+    }
+
+    /**
+     *  Get a summary of the cache's hit, miss, and eviction counts.
+     *  @return The summary.
+     */
+    @Override
+    public synchronized String toString() {
+        return this.name + ":  " + this.lists.size() + " lists, "
+                + this.bytes / (1024L * 1024L) + " of "
+                + this.maxBytes / (1024L * 1024L) + " MB, hits: "
+                + this.hits + ", misses: " + this.misses
+                + ", evictions: " + this.evictions;
+    }
+}
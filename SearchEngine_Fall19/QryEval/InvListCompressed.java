@@ -0,0 +1,354 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  A read-only inverted list that is stored block-compressed.  Query
+ *  operators such as #SYN, #NEAR/n, and #WINDOW/n keep their inverted
+ *  lists for the whole query, so QryIop converts them to this format
+ *  after they are evaluated.
+ *  <p>
+ *  Postings are divided into blocks of BLOCK_SIZE postings.  Each block
+ *  stores the docids as deltas, then the tfs, then the positions of
+ *  each document as deltas, all in variable-byte format.  The last
+ *  docid of each block is kept uncompressed; it serves as the block's
+ *  skip entry.  The iterators decode one block at a time into small
+ *  buffers, and the positions of a block are decoded only when they
+ *  are first requested.
+ *  </p>
+ */
+public class InvListCompressed extends PostingList {
+
+    //  --------------- Constants and variables -----------------------
+
+    /**
+     *  The number of postings in each block.  Must be a power of 2.
+     */
+    private static final int BLOCK_SIZE = 128;
+    private static final int BLOCK_SHIFT = 7;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    /**
+     *  The encoded postings.
+     */
+    private byte[] data;
+
+    /**
+     *  The offset in data where each block's docids begin.
+     */
+    private int[] blockOffsets;
+
+    /**
+     *  The offset in data where each block's positions begin.
+     */
+    private int[] blockPositionOffsets;
+
+    /**
+     *  The largest docid in each block.
+     */
+    private int[] blockLastDocids;
+
+    //  The block that is currently decoded.
+
+    private int decodedBlock = -1;
+    private int decodedPositionsBlock = -1;
+    private int[] blockDocids = new int[BLOCK_SIZE];
+    private int[] blockTfs = new int[BLOCK_SIZE];
+    private int[] blockPositionStarts = new int[BLOCK_SIZE + 1];
+    private int[] blockPositions = new int[BLOCK_SIZE];
+
+    /**
+     *  The read position in data while decoding.
+     */
+    private int readOffset;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Compress an inverted list.
+     *  @param source The inverted list to compress.
+     */
+    public InvListCompressed(PostingList source) {
+
+        super(source.field, source.df, source.ctf);
+
+        int blocks = (this.df + BLOCK_MASK) >>> BLOCK_SHIFT;
+        this.blockOffsets = new int[blocks];
+        this.blockPositionOffsets = new int[blocks];
+        this.blockLastDocids = new int[blocks];
+
+        //  Most deltas fit in one byte, so start with a byte per value.
+
+        VByteWriter out = new VByteWriter(this.df * 2 + this.ctf + 16);
+        int prevDocid = 0;
+
+        for (int b = 0; b < blocks; b++) {
+            int start = b << BLOCK_SHIFT;
+            int end = Math.min(start + BLOCK_SIZE, this.df);
+
+            this.blockOffsets[b] = out.length;
+
+            for (int n = start; n < end; n++) {
+                int docid = source.getDocid(n);
+                out.writeVInt(docid - prevDocid);
+                prevDocid = docid;
+            }
+
+            for (int n = start; n < end; n++) {
+                out.writeVInt(source.getTf(n));
+            }
+
+            this.blockPositionOffsets[b] = out.length;
+
+            for (int n = start; n < end; n++) {
+                int prevPosition = 0;
+
+                for (int j = 0; j < source.getTf(n); j++) {
+                    int position = source.getPosition(n, j);
+                    out.writeVInt(position - prevPosition);
+                    prevPosition = position;
+                }
+            }
+
+            this.blockLastDocids[b] = prevDocid;
+        }
+
+        this.data = Arrays.copyOf(out.bytes, out.length);
+    }
+
+    /**
+     *  Create a view of a compressed list that shares its encoded
+     *  postings, but has its own decoding buffers.
+     *  @param source The compressed list to share.
+     */
+    private InvListCompressed(InvListCompressed source) {
+        super(source.field, source.df, source.ctf);
+        this.data = source.data;
+        this.blockOffsets = source.blockOffsets;
+        this.blockPositionOffsets = source.blockPositionOffsets;
+        this.blockLastDocids = source.blockLastDocids;
+    }
+
+    /**
+     *  Get a view of the list that can be read independently of other
+     *  readers of the list.  Decoding buffers are per-view, so views of
+     *  one list may be read at the same time.
+     *  @return A view of the list.
+     */
+    public PostingList view() {
+        return new InvListCompressed(this);
+    }
+
+    /**
+     *  Decode the docids and tfs of a block, unless it is already decoded.
+     *  @param b The block to decode.
+     */
+    private void decodeBlock(int b) {
+
+        if (b == this.decodedBlock)
+            return;
+
+        int start = b << BLOCK_SHIFT;
+        int n = Math.min(BLOCK_SIZE, this.df - start);
+        int docid = (b == 0) ? 0 : this.blockLastDocids[b - 1];
+
+        //  blockPositionStarts is about to change, so the decoded
+        //  positions no longer describe any block.
+
+        this.decodedPositionsBlock = -1;
+        this.readOffset = this.blockOffsets[b];
+
+        for (int i = 0; i < n; i++) {
+            docid += this.readVInt();
+            this.blockDocids[i] = docid;
+        }
+
+        for (int i = 0; i < n; i++) {
+            this.blockTfs[i] = this.readVInt();
+            this.blockPositionStarts[i + 1] =
+                    this.blockPositionStarts[i] + this.blockTfs[i];
+        }
+
+        this.decodedBlock = b;
+    }
+
+    /**
+     *  Decode the positions of a block, unless they are already decoded.
+     *  @param b The block to decode.
+     */
+    private void decodeBlockPositions(int b) {
+
+        if (b == this.decodedPositionsBlock)
+            return;
+
+        this.decodeBlock(b);
+
+        int n = Math.min(BLOCK_SIZE, this.df - (b << BLOCK_SHIFT));
+        int total = this.blockPositionStarts[n];
+
+        if (total > this.blockPositions.length) {
+            this.blockPositions = new int[Math.max(total, this.blockPositions.length * 2)];
+        }
+
+        this.readOffset = this.blockPositionOffsets[b];
+
+        for (int i = 0; i < n; i++) {
+            int position = 0;
+
+            for (int j = this.blockPositionStarts[i]; j < this.blockPositionStarts[i + 1]; j++) {
+                position += this.readVInt();
+                this.blockPositions[j] = position;
+            }
+        }
+
+        this.decodedPositionsBlock = b;
+    }
+
+    /**
+     *  Find the index of the first posting at or after index from whose
+     *  document id is at least docid.  Blocks that end before docid are
+     *  skipped using their last docids, without being decoded.
+     *  @param from The index to start searching from.
+     *  @param docid The internal document id to search for.
+     *  @return The index of the posting, or df if there is none.
+     */
+    public int findDocid(int from, int docid) {
+
+        if (from >= this.df)
+            return from;
+
+        int b = from >>> BLOCK_SHIFT;
+
+        if (this.blockLastDocids[b] < docid) {
+
+            //  Binary search for the first block that can contain docid.
+
+            int lo = b + 1;
+            int hi = this.blockLastDocids.length;
+
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+
+                if (this.blockLastDocids[mid] < docid)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            if (lo == this.blockLastDocids.length)
+                return this.df;
+
+            b = lo;
+            from = b << BLOCK_SHIFT;
+        }
+
+        this.decodeBlock(b);
+
+        int n = Math.min(BLOCK_SIZE, this.df - (b << BLOCK_SHIFT));
+        int i = Arrays.binarySearch(this.blockDocids, from & BLOCK_MASK, n, docid);
+
+        if (i < 0)
+            i = -i - 1;
+
+        return (b << BLOCK_SHIFT) + i;
+    }
+
+    /**
+     *  Get the n'th document id from the inverted list.
+     *  @param n The index of the requested document.
+     *  @return The internal document id.
+     */
+    public int getDocid(int n) {
+        this.decodeBlock(n >>> BLOCK_SHIFT);
+        return this.blockDocids[n & BLOCK_MASK];
+    }
+
+    /**
+     *  Get the j'th position in the n'th document of the inverted list.
+     *  @param n The index of the requested document.
+     *  @param j The index of the requested position in the document.
+     *  @return The position.
+     */
+    public int getPosition(int n, int j) {
+        this.decodeBlockPositions(n >>> BLOCK_SHIFT);
+        return this.blockPositions[this.blockPositionStarts[n & BLOCK_MASK] + j];
+    }
+
+    /**
+     *  Compressed lists always store positions.
+     *  @return True.
+     */
+    public boolean hasPositions() {
+        return true;
+    }
+
+    /**
+     *  Get the term frequency in the n'th document of the inverted list.
+     *  @param n The index of the requested document term frequency.
+     *  @return The document's term frequency.
+     */
+    public int getTf(int n) {
+        this.decodeBlock(n >>> BLOCK_SHIFT);
+        return this.blockTfs[n & BLOCK_MASK];
+    }
+
+    /**
+     *  Estimate the amount of heap memory that the list uses, including
+     *  the buffers of the decoded block.
+     *  @return The estimated size of the list in bytes.
+     */
+    public long ramBytesUsed() {
+        return 64L + this.data.length
+                + 4L * (3L * this.blockOffsets.length + 3L * BLOCK_SIZE
+                + this.blockPositions.length);
+    }
+
+    /**
+     *  Read a variable-byte integer from data at readOffset.
+     *  @return The integer.
+     */
+    private int readVInt() {
+        byte b = this.data[this.readOffset++];
+        int value = b & 0x7F;
+
+        for (int shift = 7; b < 0; shift += 7) {
+            b = this.data[this.readOffset++];
+            value |= (b & 0x7F) << shift;
+        }
+
+        return value;
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  A growable byte array that writes variable-byte integers:  7 bits
+     *  per byte, low-order bits first, with the high bit set on every
+     *  byte except the last.
+     */
+    private static class VByteWriter {
+
+        private byte[] bytes;
+        private int length = 0;
+
+        private VByteWriter(int capacity) {
+            this.bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        private void writeVInt(int value) {
+
+            if (this.length + 5 > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+            }
+
+            while ((value & ~0x7F) != 0) {
+                this.bytes[this.length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            this.bytes[this.length++] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.nio.*;
+
+/**
+ *  An inverted list whose postings are read directly from a
+ *  memory-mapped HotPostingsFile.  The list has the same columnar
+ *  layout as an InvList (docids, tfs, positionOffsets, positions), but
+ *  the columns are IntBuffer slices of the mapped file rather than
+ *  heap arrays, so the postings are paged in by the operating system
+ *  and shared by every query and every process that maps the file.
+ *  <p>
+ *  The list is read-only.  Only absolute gets are used, so one list
+ *  may be read by several iterators at once.
+ *  </p>
+ */
+public class InvListMapped extends PostingList {
+
+    //  --------------- Constants and variables -----------------------
+
+    private final IntBuffer docids;
+    private final IntBuffer tfs;
+    private final IntBuffer positionOffsets;
+    private final IntBuffer positions;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Create a list from a region of a mapped postings file.  The
+     *  region contains df docids, df tfs, df+1 position offsets, and
+     *  ctf positions, stored as big-endian ints.
+     *  @param fieldString The field that the term occurs in.
+     *  @param df The number of postings in the list.
+     *  @param ctf The number of positions in the list.
+     *  @param buffer The mapped file.
+     *  @param offset The byte offset of the list in the mapped file.
+     */
+    InvListMapped(String fieldString, int df, int ctf, ByteBuffer buffer, int offset) {
+        super(fieldString, df, ctf);
+        this.docids = slice(buffer, offset, df);
+        offset += 4 * df;
+        this.tfs = slice(buffer, offset, df);
+        offset += 4 * df;
+        this.positionOffsets = slice(buffer, offset, df + 1);
+        offset += 4 * (df + 1);
+        this.positions = slice(buffer, offset, ctf);
+    }
+
+    /**
+     *  Get a view of count ints of a buffer, starting at a byte offset.
+     *  The buffer's own position and limit are not changed.
+     *  @param buffer The mapped file.
+     *  @param offset The byte offset of the first int.
+     *  @param count The number of ints.
+     *  @return The view.
+     */
+    private static IntBuffer slice(ByteBuffer buffer, int offset, int count) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.limit(offset + 4 * count);
+        return b.slice().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     *  Get the n'th document id from the inverted list.
+     *  @param n The index of the requested document.
+     *  @return The internal document id.
+     */
+    @Override
+    public int getDocid(int n) {
+        return this.docids.get(n);
+    }
+
+    /**
+     *  Get the j'th position in the n'th document of the inverted list.
+     *  @param n The index of the requested document.
+     *  @param j The index of the requested position in the document.
+     *  @return The position.
+     */
+    @Override
+    public int getPosition(int n, int j) {
+        return this.positions.get(this.positionOffsets.get(n) + j);
+    }
+
+    /**
+     *  Mapped lists always store positions.
+     *  @return True.
+     */
+    @Override
+    public boolean hasPositions() {
+        return true;
+    }
+
+    /**
+     *  Get the term frequency in the n'th document of the inverted list.
+     *  @param n The index of the requested document term frequency.
+     *  @return The document's term frequency.
+     */
+    @Override
+    public int getTf(int n) {
+        return this.tfs.get(n);
+    }
+
+    /**
+     *  The postings are off-heap, so only the buffer views use heap memory.
+     *  @return The estimated size of the list in bytes.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return 256L;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ *  Per-document length normalization tables, indexed by internal docid.
+ *  The BM25 table of a (field, k1, b) holds k1 * ((1 - b) + b *
+ *  docLength / avgDocLen), the document-dependent part of the BM25
+ *  tf weight's denominator.  The Indri table of a (field, mu) holds
+ *  1 / (docLength + mu).  Each IndexContext has its own tables.  A
+ *  table is built from the field lengths of the index the first time
+ *  that it is requested, and it is then shared by all queries and by
+ *  the LETOR feature scorers.  The smallest value of each BM25 table is
+ *  kept too, for score bounds.
+ *  <p>
+ *  Field lengths come from the index's FieldLengths sidecar when it is
+ *  loaded.  Otherwise a field's lengths are read from the norms once
+ *  and kept for the other tables of the field.
+ *  </p>
+ */
+public class LengthNorms {
+
+    //  --------------- Constants and variables -----------------------
+
+    /**
+     *  The index that the tables are built from.
+     */
+    private final IndexContext index;
+
+    /**
+     *  The tables, indexed by "bm25/field/k1/b" or "indri/field/mu".
+     */
+    private final HashMap<String, double[]> tables = new HashMap<String, double[]>();
+
+    /**
+     *  Field lengths that were read from the norms because the index
+     *  has no FieldLengths sidecar, indexed by field.
+     */
+    private final HashMap<String, IntBuffer> lengths = new HashMap<String, IntBuffer>();
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Constructor.  Tables are built when they are first requested.
+     *  @param index The index that the tables are built from.
+     */
+    LengthNorms(IndexContext index) {
+        this.index = index;
+    }
+
+    /**
+     *  Get the BM25 length normalization table of a field.
+     *  @param field The field name.
+     *  @param k1 The BM25 k1 parameter.
+     *  @param b The BM25 b parameter.
+     *  @return k1 * ((1 - b) + b * docLength / avgDocLen) for each document.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public synchronized double[] getBM25(String field, double k1, double b)
+            throws IOException {
+
+        String key = "bm25/" + field + "/" + k1 + "/" + b;
+        double[] table = this.tables.get(key);
+
+        if (table == null) {
+            IntBuffer fieldLengths = this.getLengths(field);
+            double avgDocLen = this.index.getCollectionStats(field).getAvgFieldLength();
+            table = new double[fieldLengths.limit()];
+
+            for (int i = 0; i < table.length; i++)
+                table[i] = k1 * ((1 - b) + b * fieldLengths.get(i) / avgDocLen);
+
+            this.tables.put(key, table);
+        }
+
+        return table;
+    }
+
+    /**
+     *  Get the smallest value in the BM25 length normalization table of
+     *  a field, i.e., the value for the shortest document.
+     *  @param field The field name.
+     *  @param k1 The BM25 k1 parameter.
+     *  @param b The BM25 b parameter.
+     *  @return The smallest value of k1 * ((1 - b) + b * docLength / avgDocLen).
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public synchronized double getMinBM25(String field, double k1, double b)
+            throws IOException {
+
+        String key = "bm25min/" + field + "/" + k1 + "/" + b;
+        double[] min = this.tables.get(key);
+
+        if (min == null) {
+            double[] table = this.getBM25(field, k1, b);
+            min = new double[]{Double.POSITIVE_INFINITY};
+
+            for (double norm : table)
+                min[0] = Math.min(min[0], norm);
+
+            this.tables.put(key, min);
+        }
+
+        return min[0];
+    }
+
+    /**
+     *  Get the Indri length normalization table of a field.
+     *  @param field The field name.
+     *  @param mu The Indri mu parameter.
+     *  @return 1 / (docLength + mu) for each document.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public synchronized double[] getIndri(String field, double mu)
+            throws IOException {
+
+        String key = "indri/" + field + "/" + mu;
+        double[] table = this.tables.get(key);
+
+        if (table == null) {
+            IntBuffer fieldLengths = this.getLengths(field);
+            table = new double[fieldLengths.limit()];
+
+            for (int i = 0; i < table.length; i++)
+                table[i] = 1.0 / (fieldLengths.get(i) + mu);
+
+            this.tables.put(key, table);
+        }
+
+        return table;
+    }
+
+    /**
+     *  Get the length of a field in every document of the index.  The
+     *  buffer must only be read with absolute gets, because it is shared.
+     *  @param field The field name.
+     *  @return The field lengths, indexed by internal docid.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public synchronized IntBuffer getLengths(String field) throws IOException {
+
+        FieldLengths sidecar = this.index.getFieldLengths();
+        IntBuffer fieldLengths = (sidecar != null) ? sidecar.getLengths(field) : null;
+
+        if (fieldLengths != null)
+            return fieldLengths;
+
+        fieldLengths = this.lengths.get(field);
+
+        if (fieldLengths == null) {
+            fieldLengths = IntBuffer.wrap(
+                    FieldLengths.readNorms(this.index.getReader(), field));
+            this.lengths.put(field, fieldLengths);
+        }
+
+        return fieldLengths;
+    }
+}
+
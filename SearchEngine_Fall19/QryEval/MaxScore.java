@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A MaxScore evaluator for flat BM25 #SUM queries (#SUM operators
+ *  whose arguments are all #SCORE operators) when only the top k
+ *  documents are needed.
+ *  <p>
+ *  Each #SCORE argument has an upper bound on the score that it can
+ *  give a document:  its weight times maxTf / (maxTf + minNorm), where
+ *  maxTf is the largest tf in its inverted list and minNorm is the BM25
+ *  length normalization of the shortest document.  The arguments are
+ *  sorted by upper bound.  Once k documents have been scored, the
+ *  arguments whose upper bounds sum to less than the k'th best score
+ *  are non-essential:  a document that matches only non-essential
+ *  arguments can't enter the top k.  So candidate documents come from
+ *  the essential arguments, and the non-essential arguments are only
+ *  probed, with the largest upper bound first, until the candidate's
+ *  score plus the remaining upper bounds falls below the k'th score.
+ *  </p><p>
+ *  The evaluation is safe.  A document is only skipped if its score
+ *  is certainly below the k'th best score, and the upper bounds are
+ *  enlarged slightly so that rounding can't make them too small.  A
+ *  document that is fully scored has its argument scores summed in
+ *  query order, which gives the same double as document-at-a-time
+ *  evaluation.  A document that ties with the k'th score is still
+ *  scored, and TopKCollector breaks the tie by external docid.  The
+ *  ranking is identical to exhaustive evaluation.
+ *  </p>
+ */
+public class MaxScore {
+
+    //  --------------- Constants and variables -----------------------
+
+    /**
+     *  Upper bounds are multiplied by this before they are compared
+     *  with a score, to allow for rounding.
+     */
+    static final double SAFETY = 1.0 + 1e-9;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Determine whether a query can be evaluated by this evaluator.
+     *  @param q The query, which must be initialized.
+     *  @param r The retrieval model.
+     *  @param k The number of documents that are needed.
+     *  @return True if the evaluator is enabled for the model's index,
+     *          the query is a BM25 #SUM of #SCORE operators, and k is
+     *          limited.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r, int k) {
+        return r.getIndexContext().isMaxScore() && (k < Integer.MAX_VALUE) &&
+                TermAtATime.isFlatSum(q, r);
+    }
+
+    /**
+     *  Evaluate a query with MaxScore.
+     *  @param q The query, which must be initialized, and which
+     *         canEvaluate must accept.
+     *  @param r The retrieval model.
+     *  @param k The number of documents to return.
+     *  @return The top k documents, unsorted.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static ScoreList evaluate(QrySop q, RetrievalModelBM25 r, int k)
+            throws IOException {
+
+        ScoreList results = new ScoreList(r.getIndexContext());
+        int n = q.args.size();
+
+        if (k <= 0)
+            return results;
+
+        //  Sort the arguments by upper bound.
+
+        Integer[] order = new Integer[n];
+        final double[] bounds = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            bounds[i] = upperBound((QrySopScore) q.args.get(i), r);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(bounds[a], bounds[b]);
+            }
+        });
+
+        QryIop[] lists = new QryIop[n];
+        double[] weights = new double[n];
+        double[][] norms = new double[n][];
+        int[] argIndex = new int[n];
+        double[] cumBounds = new double[n];     // bound of lists 0..i
+
+        for (int i = 0; i < n; i++) {
+            QrySopScore s = (QrySopScore) q.args.get(order[i]);
+
+            lists[i] = s.getArg(0);
+            weights[i] = s.getBM25Weight();
+            norms[i] = s.getBM25Norms();
+            argIndex[i] = order[i];
+            cumBounds[i] = ((i > 0) ? cumBounds[i - 1] : 0.0) + bounds[order[i]];
+        }
+
+        //  Lists [0, essential) are non-essential.
+
+        TopKCollector top = new TopKCollector(r.getIndexContext(), k);
+        double[] argScores = new double[n];
+        int essential = 0;
+
+        while (true) {
+
+            //  The next candidate is the smallest docid in an essential list.
+
+            int docid = Integer.MAX_VALUE;
+
+            for (int i = essential; i < n; i++) {
+                if (lists[i].docIteratorHasMatch(r))
+                    docid = Math.min(docid, lists[i].docIteratorGetMatch());
+            }
+
+            if (docid == Integer.MAX_VALUE)
+                break;
+
+            Arrays.fill(argScores, 0.0);
+            double partial = 0.0;
+
+            for (int i = essential; i < n; i++) {
+                if (lists[i].docIteratorHasMatch(r) &&
+                    (lists[i].docIteratorGetMatch() == docid)) {
+                    double score = score(lists[i], weights[i], norms[i], docid);
+                    argScores[argIndex[i]] = score;
+                    partial += score;
+                    lists[i].docIteratorAdvancePast(docid);
+                }
+            }
+
+            //  Probe the non-essential lists while the document can
+            //  still enter the top k.
+
+            boolean pruned = false;
+
+            for (int i = essential - 1; i >= 0; i--) {
+                if ((partial + cumBounds[i]) * SAFETY < top.getThreshold()) {
+                    pruned = true;
+                    break;
+                }
+
+                lists[i].docIteratorAdvanceTo(docid);
+
+                if (lists[i].docIteratorHasMatch(r) &&
+                    (lists[i].docIteratorGetMatch() == docid)) {
+                    double score = score(lists[i], weights[i], norms[i], docid);
+                    argScores[argIndex[i]] = score;
+                    partial += score;
+                }
+            }
+
+            if (pruned)
+                continue;
+
+            //  Same summation order as QrySopSum.getScore.
+
+            double score = 0.0;
+
+            for (int i = 0; i < n; i++)
+                score += argScores[i];
+
+            if (top.add(docid, score)) {
+                while ((essential < n) &&
+                       (cumBounds[essential] * SAFETY < top.getThreshold()))
+                    essential++;
+            }
+        }
+
+        top.addTo(results);
+        return results;
+    }
+
+    /**
+     *  Get the BM25 score of the document that a list's docIterator
+     *  points to.  Same arithmetic as QrySopScore.getScore.
+     *  @param list The inverted list.
+     *  @param weight The BM25 weight of the list's #SCORE operator.
+     *  @param norms The BM25 length normalization table.
+     *  @param docid The document.
+     *  @return The score.
+     */
+    private static double score(QryIop list, double weight, double[] norms, int docid) {
+        int tf = list.docIteratorGetMatchTf();
+
+        return weight * tf / (tf + norms[docid]);
+    }
+
+    /**
+     *  Get an upper bound on the score that a #SCORE operator gives any
+     *  document:  weight * maxTf / (maxTf + minNorm).
+     *  @param s The #SCORE operator.
+     *  @param r The retrieval model.
+     *  @return The upper bound.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    static double upperBound(QrySopScore s, RetrievalModelBM25 r)
+            throws IOException {
+
+        QryIop q = s.getArg(0);
+        int maxTf = q.getMaxTf();
+
+        if (maxTf < 1)
+            return 0.0;
+
+        double minNorm = r.getIndexContext().getLengthNorms()
+                .getMinBM25(q.getField(), r.getK1(), r.getB());
+
+        return s.getBM25Weight() * maxTf / (maxTf + minNorm);
+    }
+}
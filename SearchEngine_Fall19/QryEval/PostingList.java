@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  A read-only inverted list.  Query operators read postings through
+ *  this interface, so a list may be stored in whatever format suits
+ *  it:  InvList builds lists in columns of primitive arrays,
+ *  InvListCompressed keeps them block-compressed, and InvListMapped
+ *  reads them from a memory-mapped file.
+ *  <p>
+ *  The n'th posting is described by getDocid(n) and getTf(n); its
+ *  positions are getPosition(n, 0) ... getPosition(n, getTf(n)-1).
+ *  </p>
+ */
+public abstract class PostingList {
+
+    //  --------------- Constants and variables -----------------------
+
+    /**
+     *  Collection term frequency: The number of times that a term
+     *  occurs across all instances of the specified field.
+     */
+    public int ctf = 0;
+
+    /**
+     *  Document frequency: The number of documents that have the term
+     *  in the specified field.
+     */
+    public int df = 0;
+
+    /**
+     *  The field covered by the inverted list.
+     */
+    public String field;
+
+    /**
+     *  The largest term frequency in the list, or -1 if it hasn't been
+     *  computed yet.
+     */
+    private int maxTf = -1;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Constructor for lists that are built one posting at a time.
+     */
+    protected PostingList() {
+    }
+
+    /**
+     *  Constructor for lists whose size is known.
+     *  @param fieldString The field that the term occurs in.
+     *  @param df The number of postings in the list.
+     *  @param ctf The number of positions in the list.
+     */
+    protected PostingList(String fieldString, int df, int ctf) {
+        this.field = fieldString;
+        this.df = df;
+        this.ctf = ctf;
+    }
+
+    /**
+     *  Get the n'th document id from the inverted list.
+     *  @param n The index of the requested document.
+     *  @return The internal document id.
+     */
+    public abstract int getDocid(int n);
+
+    /**
+     *  Get the j'th position in the n'th document of the inverted list.
+     *  @param n The index of the requested document.
+     *  @param j The index of the requested position in the document.
+     *  @return The position.
+     */
+    public abstract int getPosition(int n, int j);
+
+    /**
+     *  Get the term frequency in the n'th document of the inverted list.
+     *  @param n The index of the requested document term frequency.
+     *  @return The document's term frequency.
+     */
+    public abstract int getTf(int n);
+
+    /**
+     *  Determine whether the list stores the positions of its postings.
+     *  @return False if the list has frequency-only postings.
+     */
+    public abstract boolean hasPositions();
+
+    /**
+     *  Estimate the amount of heap memory that the list uses.
+     *  @return The estimated size of the list in bytes.
+     */
+    public abstract long ramBytesUsed();
+
+    /**
+     *  Find the index of the first posting at or after index from whose
+     *  document id is at least docid.  The search gallops forward from
+     *  index from in steps of 1, 2, 4, ... and then does a binary search
+     *  within the last step, so its cost depends on the distance skipped
+     *  rather than on the length of the list.
+     *  @param from The index to start searching from.
+     *  @param docid The internal document id to search for.
+     *  @return The index of the posting, or df if there is none.
+     */
+    public int findDocid(int from, int docid) {
+
+        if ((from >= this.df) || (this.getDocid(from) >= docid))
+            return from;
+
+        //  Gallop until getDocid(hi) >= docid or the end of the list.
+        //  getDocid(lo) < docid is invariant.
+
+        int lo = from;
+        int step = 1;
+        int hi = from + step;
+
+        while ((hi < this.df) && (this.getDocid(hi) < docid)) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+
+        if (hi > this.df)
+            hi = this.df;
+
+        //  Binary search in (lo, hi].
+
+        while (lo + 1 < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (this.getDocid(mid) < docid)
+                lo = mid;
+            else
+                hi = mid;
+        }
+
+        return hi;
+    }
+
+    /**
+     *  Get the largest term frequency of any document in the list.  It
+     *  is computed the first time that it is requested, so it should
+     *  only be requested after the list is finished.
+     *  @return The largest term frequency, or 0 if the list is empty.
+     */
+    public int getMaxTf() {
+
+        if (this.maxTf < 0) {
+            int max = 0;
+
+            for (int i = 0; i < this.df; i++)
+                max = Math.max(max, this.getTf(i));
+
+            this.maxTf = max;
+        }
+
+        return this.maxTf;
+    }
+
+    /**
+     *  Get a view of the list that can be read independently of other
+     *  readers of the list.  Lists that don't keep decoding state
+     *  return themselves.
+     *  @return A view of the list.
+     */
+    public PostingList view() {
+        return this;
+    }
+
+    /**
+     *  Print the inverted list.  This is handy for debugging.
+     */
+    public void print() {
+
+        System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
+
+        for (int i = 0; i < this.df; i++) {
+            System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+                    + this.getTf(i) + ", locs: ");
+
+            for (int j = 0; this.hasPositions() && (j < this.getTf(i)); j++) {
+                System.out.print(this.getPosition(i, j) + " ");
+            }
+
+            System.out.println();
+        }
+    }
+}
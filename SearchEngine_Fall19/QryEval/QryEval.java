@@ -53,7 +53,67 @@ public class QryEval {
 
         //  Open the index and initialize the retrieval model.
 
-        Idx.open(parameters.get("indexPath"));
+        IndexContext index = Idx.open(parameters.get("indexPath"));
+        if (parameters.containsKey("streamTermPostings")) {
+            index.setStreamPostings(
+                    Boolean.parseBoolean(parameters.get("streamTermPostings")));
+        }
+        if (parameters.containsKey("compressInvertedLists")) {
+            index.setCompressDerivedLists(
+                    Boolean.parseBoolean(parameters.get("compressInvertedLists")));
+        }
+        if (parameters.containsKey("fieldLengths")) {
+            String mode = parameters.get("fieldLengths").toLowerCase();
+            if (mode.equals("heap") || mode.equals("mmap")) {
+                index.setFieldLengths(new FieldLengths(index, mode.equals("mmap")));
+            } else if (!mode.equals("norms")) {
+                throw new IllegalArgumentException
+                        ("fieldLengths must be heap, mmap, or norms.");
+            }
+        }
+        if (parameters.containsKey("externalIds")) {
+            String mode = parameters.get("externalIds").toLowerCase();
+            if (mode.equals("heap") || mode.equals("mmap")) {
+                index.setExternalIds(new ExternalIds(index, mode.equals("mmap")));
+            } else if (!mode.equals("stored")) {
+                throw new IllegalArgumentException
+                        ("externalIds must be heap, mmap, or stored.");
+            }
+        }
+        if (parameters.containsKey("blockMaxWand")) {
+            index.setBlockMaxWand(Boolean.parseBoolean(parameters.get("blockMaxWand")));
+        }
+        if (parameters.containsKey("maxScore")) {
+            index.setMaxScore(Boolean.parseBoolean(parameters.get("maxScore")));
+        }
+        if (parameters.containsKey("termAtATime")) {
+            index.setTermAtATime(Boolean.parseBoolean(parameters.get("termAtATime")));
+        }
+        if (parameters.containsKey("termAtATimeAccumulators")) {
+            index.setTermAtATimeAccumulators(parameters.get("termAtATimeAccumulators"));
+        }
+        if (parameters.containsKey("segmentThreads")) {
+            index.setSegmentThreads(Integer.parseInt(parameters.get("segmentThreads")));
+        }
+        if (parameters.containsKey("invListCacheMB")) {
+            index.setInvListCacheSize(
+                    Long.parseLong(parameters.get("invListCacheMB")) * 1024L * 1024L);
+        }
+        if (parameters.containsKey("qryIopCacheMB")) {
+            index.setQryIopCacheSize(
+                    Long.parseLong(parameters.get("qryIopCacheMB")) * 1024L * 1024L);
+        }
+        if (parameters.containsKey("hotPostingsPath")) {
+            String hotPostingsPath = parameters.get("hotPostingsPath");
+            if (parameters.containsKey("hotPostingsQueryLog") &&
+                    !HotPostingsFile.isCurrent(hotPostingsPath, index)) {
+                int numTerms = parameters.containsKey("hotPostingsTerms") ?
+                        Integer.parseInt(parameters.get("hotPostingsTerms")) : 1000;
+                HotPostingsFile.write(hotPostingsPath,
+                        parameters.get("hotPostingsQueryLog"), numTerms, index);
+            }
+            index.setHotPostings(new HotPostingsFile(hotPostingsPath, index));
+        }
         RetrievalModel model;
         if (parameters.containsKey("retrievalAlgorithm")) {
             model = initializeRetrievalModel(parameters);
@@ -96,6 +156,22 @@ public class QryEval {
 
         //  Clean up.
 
+        if (index.getFieldLengths() != null) {
+            System.out.println(index.getFieldLengths());
+        }
+        if (index.getExternalIds() != null) {
+            System.out.println(index.getExternalIds());
+        }
+        if (index.getHotPostings() != null) {
+            System.out.println(index.getHotPostings());
+        }
+        if (index.getInvListCache() != null) {
+            System.out.println(index.getInvListCache());
+        }
+        if (index.getQryIopCache() != null) {
+            System.out.println(index.getQryIopCache());
+        }
+
         timer.stop();
         System.out.println("Time:  " + timer);
     }
@@ -120,6 +196,7 @@ public class QryEval {
         try {
             output = new BufferedWriter(new FileWriter(parameters.get("trecEvalOutputPath")));
             Deque<Double> SVMScoreQueue = readSVMScores(model.testingDocumentScores);
+            IndexContext index = model.getIndexContext();
 
             for (Map.Entry<Integer, List<String>> queryEntry : docSequence.entrySet()) {//for each qid
 
@@ -131,7 +208,8 @@ public class QryEval {
 
                     if (!SVMScoreQueue.isEmpty()) {
 
-                        result.add(Idx.getInternalDocid(externalDocIds.get(i)), SVMScoreQueue.pollFirst());
+                        result.add(index.getInternalDocid(externalDocIds.get(i)), SVMScoreQueue.pollFirst(),
+                                externalDocIds.get(i));
                     }
                 }
 
@@ -250,6 +328,8 @@ public class QryEval {
                 double lambda = Double.parseDouble(lambdaStr);
                 if (mu >= 0 && lambda >= 0.0 && lambda <= 1.0) {
                     model = new RetrievalModelIndri(mu, lambda);
+                    ((RetrievalModelIndri) model).setLogSpace(
+                            Boolean.parseBoolean(parameters.get("Indri:logSpace")));
                 } else {
                     throw new IllegalArgumentException("Illegal Indri parameter value!");
                 }
@@ -321,6 +401,25 @@ public class QryEval {
      */
     static ScoreList processQuery(String qryString, RetrievalModel model)
             throws IOException {
+        return processQuery(qryString, model, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Process one query, when the caller uses only the top k results.
+     * Evaluators that can find the top k documents without scoring
+     * every match (e.g., BlockMaxWand, MaxScore) are used when they
+     * support the query and retrieval model.  Otherwise every match is
+     * scored, and a TopKCollector keeps the k best, so memory and sort
+     * costs depend on k rather than on the number of matches.
+     *
+     * @param qryString A string that contains a query.
+     * @param model     The retrieval model determines how matching and scoring is done.
+     * @param k         The number of results that the caller uses.
+     * @return The top k search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qryString, RetrievalModel model, int k)
+            throws IOException {
 
         String defaultOp = model.defaultQrySopName();
         qryString = defaultOp + "(" + qryString + ")";
@@ -332,17 +431,28 @@ public class QryEval {
 
         if (q != null) {
 
-            ScoreList results = new ScoreList();
+            ScoreList results = new ScoreList(model.getIndexContext());
 
             if (q.args.size() > 0) {        // Ignore empty queries
 
                 q.initialize(model);// get inverted list info
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    results.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+                if (BlockMaxWand.canEvaluate(q, model, k)) {
+                    results = BlockMaxWand.evaluate((QrySop) q, (RetrievalModelBM25) model, k);
+                } else if (MaxScore.canEvaluate(q, model, k)) {
+                    results = MaxScore.evaluate((QrySop) q, (RetrievalModelBM25) model, k);
+                } else if (TermAtATime.canEvaluate(q, model)) {
+                    results = TermAtATime.evaluate((QrySop) q, (RetrievalModelBM25) model, k);
+                } else {
+                    TopKCollector top = new TopKCollector(model.getIndexContext(), k);
+
+                    while (q.docIteratorHasMatch(model)) {
+                        int docid = q.docIteratorGetMatch();
+                        double score = ((QrySop) q).getScore(model);
+                        top.add(docid, score);
+                        q.docIteratorAdvancePast(docid);
+                    }
+                    top.addTo(results);
                 }
             }
             results.sort();
@@ -351,6 +461,24 @@ public class QryEval {
             return null;
     }
 
+    /**
+     * Convert log probability scores to probabilities, for code that
+     * combines the scores of a ranking (e.g., query expansion and
+     * diversification).  Scores that are already probabilities are not
+     * changed.  The order of the ranking is not changed.
+     *
+     * @param results The ranking.
+     * @param model   The retrieval model that produced the ranking.
+     */
+    private static void toProbabilities(ScoreList results, RetrievalModel model) {
+        if ((results != null) && (model instanceof RetrievalModelIndri) &&
+                ((RetrievalModelIndri) model).isLogSpace()) {
+            for (int i = 0; i < results.size(); i++) {
+                results.setDocidScore(i, Math.exp(results.getDocidScore(i)));
+            }
+        }
+    }
+
     /**
      * Process the query file.
      *
@@ -383,7 +511,8 @@ public class QryEval {
             //Initialize the (scoreList) initialResults using the file
             Map<String, ScoreList> initialResultsMapforExpansion = new HashMap<>();
             if (hasExpansionInitialRankingFile(parameters)) {
-                initialResultsMapforExpansion = processInitialRankingFile(parameters.get("fbInitialRankingFile"));
+                initialResultsMapforExpansion = processInitialRankingFile(parameters.get("fbInitialRankingFile"),
+                        model.getIndexContext());
             }
             if (needExpansion(parameters)) {
                 queryExpansionOutput = new BufferedWriter(new FileWriter(parameters.get("fbExpansionQueryFile")));
@@ -401,7 +530,8 @@ public class QryEval {
 
                 if (hasDiversificationInitialRankingFile(parameters)) {
 
-                    initialResultsMapforDiversification = processInitialRankingFile(parameters.get("diversity:initialRankingFile"));
+                    initialResultsMapforDiversification = processInitialRankingFile(parameters.get("diversity:initialRankingFile"),
+                            model.getIndexContext());
                     intentMap = getIntentsFromInitialRankingFile(parameters.get("diversity:initialRankingFile"));
                 } else {
 
@@ -415,7 +545,7 @@ public class QryEval {
                 }
 
 
-                diversificaton = new Diversificaton(parameters);
+                diversificaton = new Diversificaton(parameters, model.getIndexContext());
 
 
                 diversificaton.setIntentMap(intentMap);
@@ -448,7 +578,7 @@ public class QryEval {
 
                 if (!needExpansion(parameters) && !needDiversification(parameters)) {
 
-                    initialResults = processQuery(query, model);
+                    initialResults = processQuery(query, model, getOutputLength(parameters));
                     StringBuilder outputStr = formatResults(qid, initialResults, parameters);
                     output.write(outputStr.toString());
 
@@ -463,11 +593,13 @@ public class QryEval {
                         initialResults = initialResultsMapforExpansion.get(qid);
 
                     } else {
-                        initialResults = processQuery(query, model);
+                        initialResults = processQuery(query, model,
+                                Integer.parseInt(parameters.get("fbDocs")));
+                        toProbabilities(initialResults, model);
                     }
 
 
-                    String expandedQuery = getExpandedQuery(initialResults, parameters);
+                    String expandedQuery = getExpandedQuery(initialResults, parameters, model.getIndexContext());
                     System.out.printf("%s: %s\n", qid, expandedQuery);
                     queryExpansionOutput.write(String.format("%s: %s\n", qid, expandedQuery));
                     double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
@@ -479,7 +611,7 @@ public class QryEval {
                     System.out.println("****Combined Query: " + combinedQuery);
 
                     //Use the combined query to retrieve documents;
-                    ScoreList results = processQuery(combinedQuery, model);
+                    ScoreList results = processQuery(combinedQuery, model, getOutputLength(parameters));
                     StringBuilder outputStr = formatResults(qid, results, parameters);
                     //System.out.println(outputStr);
                     output.write(outputStr.toString());
@@ -562,11 +694,12 @@ public class QryEval {
             fmt.format("%s\n", "BeHappy");
         } else {
             Integer outputLength = getOutputLength(results, parameters);
+            results.resolveExternalDocids(outputLength);
             for (int i = 0; i < outputLength; i++) {
                 Formatter fmt = new Formatter(outputStr);
                 fmt.format("%s ", queryName);
                 fmt.format("%s ", "Q0");
-                fmt.format("%s ", Idx.getExternalDocid(results.getDocid(i)));
+                fmt.format("%s ", results.getExternalDocid(i));
                 fmt.format("%d ", i + 1);
                 fmt.format("%.18f ", results.getDocidScore(i));
                 fmt.format("%s\n", "BeHappy");
@@ -575,6 +708,17 @@ public class QryEval {
         return outputStr;
     }
 
+    /**
+     * Get the number of results that are written for each query.
+     *
+     * @param parameters The parameters.
+     * @return trecEvalOutputLength, or Integer.MAX_VALUE if it isn't set.
+     */
+    private static int getOutputLength(Map<String, String> parameters) {
+        return parameters.containsKey("trecEvalOutputLength") ?
+                Integer.parseInt(parameters.get("trecEvalOutputLength")) : Integer.MAX_VALUE;
+    }
+
     private static Integer getOutputLength(ScoreList results, Map<String, String> parameters) {
         Integer outputLength = results.size();
 
@@ -725,8 +869,12 @@ public class QryEval {
 
     /**
      * Get Map of <qid, Scorelist> from existing doc ranking provided
+     *
+     * @param initialRankingFile
+     * @param index The index whose internal docids the score lists use.
      */
-    private static Map<String, ScoreList> processInitialRankingFile(String initialRankingFile) throws Exception {
+    private static Map<String, ScoreList> processInitialRankingFile(String initialRankingFile,
+                                                                    IndexContext index) throws Exception {
         Map<String, ScoreList> initialResultMap = new HashMap<>();
         try {
             BufferedReader in = new BufferedReader(new FileReader(initialRankingFile));
@@ -746,8 +894,8 @@ public class QryEval {
                 }
                 //Add scoreEntry in the current scorelist
                 scoreList = initialResultMap.get(qid);
-                int internalDocId = Idx.getInternalDocid(externalDocId);
-                scoreList.add(internalDocId, score);
+                int internalDocId = index.getInternalDocid(externalDocId);
+                scoreList.add(internalDocId, score, externalDocId);
             }
             in.close();
         } catch (FileNotFoundException e) {
@@ -883,8 +1031,9 @@ public class QryEval {
 
                 String qid = pair[0];
                 String query = pair[1];
-                ScoreList initialResults = processQuery(query, model);
+                ScoreList initialResults = processQuery(query, model, maxInputRankingsLength);
                 initialResults.truncate(Math.min(maxInputRankingsLength, initialResults.size()));
+                toProbabilities(initialResults, model);
 //                System.out.println(" -> initial results");
 //                StringBuilder outputStr = formatResults(qid, initialResults, parameters);
 //                System.out.println(outputStr);
@@ -901,8 +1050,9 @@ public class QryEval {
                     }
                     String qid_intent = pair_intent[0];
                     String query_intent = pair_intent[1];
-                    ScoreList results_intent = processQuery(query_intent, model);
+                    ScoreList results_intent = processQuery(query_intent, model, maxInputRankingsLength);
                     results_intent.truncate(Math.min(maxInputRankingsLength, results_intent.size()));
+                    toProbabilities(results_intent, model);
 //                    System.out.println(" -> intent results");
 //                    StringBuilder outputStr = formatResults(qid_intent, initialResults, parameters);
 //                    System.out.println(outputStr);
@@ -921,13 +1071,16 @@ public class QryEval {
      * e.g. #wand (0.73 obama 0.43 family 0.40 white 0.65 tree 0.33 politics ...)
      *
      * @param initialResult
+     * @param index The index that the initial results were retrieved from.
      * @return
      */
-    private static String getExpandedQuery(ScoreList initialResult, Map<String, String> parameters) throws IOException {
+    private static String getExpandedQuery(ScoreList initialResult, Map<String, String> parameters,
+                                           IndexContext index) throws IOException {
         //Read expansion parameters
         int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
         int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
         int mu = Integer.parseInt(parameters.get("fbMu"));
+        long bodyLength = index.getCollectionStats("body").getSumTotalTermFreq();
 
         // Extract potential expansion terms from top n documents
         // Calculate an Indri score for each potential expansion term
@@ -967,8 +1120,8 @@ public class QryEval {
         for (int i = 0; i < docNum; i++) {
 
             int internalDocId = initialResult.getDocid(i);
-            TermVector termVector = new TermVector(internalDocId, "body");
-            long docLength = Idx.getFieldLength("body", internalDocId);
+            TermVector termVector = new TermVector(index, internalDocId, "body");
+            long docLength = index.getFieldLength("body", internalDocId);
             // P (I | d)
             double indriScore = initialResult.getDocidScore(i);
             Set<String> terms = new HashSet<>();// Set of terms under this doc
@@ -986,7 +1139,7 @@ public class QryEval {
                 termSet.add(term);//add term to termset
 
                 // P (t | d)
-                double ptd = calculateTermProbInDoc(termVector, termIndex, docLength, mu);
+                double ptd = calculateTermProbInDoc(termVector, termIndex, docLength, mu, bodyLength);
                 double curScore = ptd * indriScore;
 
                 if (expansionTermScoreMap.containsKey(term)) {
@@ -996,7 +1149,7 @@ public class QryEval {
                     expansionTermScoreMap.put(term, curScore);
                 }
                 // Pmle (t | C) -> unrelated to doc
-                double mle = 1.0 * termVector.totalStemFreq(termIndex) / Idx.getSumOfFieldLengths("body");
+                double mle = 1.0 * termVector.totalStemFreq(termIndex) / bodyLength;
                 termMleMap.putIfAbsent(term, mle);//update mle
             }
             docTermsMap.put(internalDocId, terms);//update map of doc to terms
@@ -1005,7 +1158,7 @@ public class QryEval {
         //Calculate term score omitted (absent from TermVector due to tf = 0)
         for (int i = 0; i < docNum; i++) {
             int internalDocId = initialResult.getDocid(i);
-            long docLength = Idx.getFieldLength("body", internalDocId);
+            long docLength = index.getFieldLength("body", internalDocId);
             // P (I | d)
             double indriScore = initialResult.getDocidScore(i);
             Set<String> terms = docTermsMap.get(internalDocId);
@@ -1044,14 +1197,16 @@ public class QryEval {
      * @param termIndex
      * @param docLength
      * @param mu
+     * @param bodyLength the sum of the body field lengths in the corpus
      * @return
      * @throws IOException
      */
-    private static double calculateTermProbInDoc(TermVector termVector, int termIndex, long docLength, int mu) throws IOException {
+    private static double calculateTermProbInDoc(TermVector termVector, int termIndex, long docLength, int mu,
+                                                 long bodyLength) throws IOException {
         // P (t | d)
         int tf = termVector.stemFreq(termIndex);
         // Pmle (t | C)
-        double mle = 1.0 * termVector.totalStemFreq(termIndex) / Idx.getSumOfFieldLengths("body");
+        double mle = 1.0 * termVector.totalStemFreq(termIndex) / bodyLength;
         double idf = Math.log(1 / mle);
         return (tf + mu * mle) / (docLength + mu * 1.0) * idf;
     }
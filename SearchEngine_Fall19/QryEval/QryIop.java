@@ -35,6 +35,10 @@ public abstract class QryIop extends Qry {
      *  Iteration in QryIop and QrySop is very different.  In QryIop,
      *  docIterator and locIterator iterate over the cached inverted
      *  list, NOT recursively over the query arguments.
+     *
+     *  The docIterator advances with PostingList.findDocid, a galloping
+     *  search, so an #AND of a rare term and a common term costs
+     *  O(df_rare * log (df_common / df_rare)) rather than O(df_common).
      */
 
     /**
@@ -48,11 +52,18 @@ public abstract class QryIop extends Qry {
      */
     protected String field = null;
 
+    /**
+     *  False if the locIterator of this operator is never used, so its
+     *  inverted list does not need positions.  QryParser sets this
+     *  after it parses a query.
+     */
+    protected boolean positionsNeeded = true;
+
     /**
      *  The inverted list that is produced when the query operator is
      *  initialized; use the docIterator to access this list.
      */
-    protected InvList invertedList = null;
+    protected PostingList invertedList = null;
 
     /**
      *  The index of the document that the docIterator points to now.
@@ -71,9 +82,11 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvancePast(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) <= docid)) {
-            this.docIteratorIndex++;
+        if (docid == Integer.MAX_VALUE) {
+            this.docIteratorFinish();
+        } else {
+            this.docIteratorIndex =
+                    this.invertedList.findDocid(this.docIteratorIndex, docid + 1);
         }// docIteratorIndex is the index for collections with size of intertedList.df, each maps a doc id
 
         this.locIteratorIndex = 0;
@@ -86,10 +99,8 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvanceTo(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
-            this.docIteratorIndex++;
-        }
+        this.docIteratorIndex =
+                this.invertedList.findDocid(this.docIteratorIndex, docid);
 
         this.locIteratorIndex = 0;
     }
@@ -99,7 +110,7 @@ public abstract class QryIop extends Qry {
      *  any possible document.
      */
     public void docIteratorFinish() {
-        this.docIteratorIndex = this.invertedList.postings.size();
+        this.docIteratorIndex = this.invertedList.df;
     }
 
     /**
@@ -114,12 +125,13 @@ public abstract class QryIop extends Qry {
     }
 
     /**
-     *  Return the postings for the document that the docIterator points to
-     *  now, or throw an error if the docIterator doesn't point at a document.
-     *  @return A document posting.
+     *  Return the term frequency of the document that the docIterator
+     *  points to now, or throw an error if the docIterator doesn't point
+     *  at a document.
+     *  @return The document's term frequency.
      */
-    public InvList.DocPosting docIteratorGetMatchPosting() {
-        return this.invertedList.postings.get(docIteratorIndex);
+    public int docIteratorGetMatchTf() {
+        return this.invertedList.getTf(this.docIteratorIndex);
     }
 
     /**
@@ -131,6 +143,60 @@ public abstract class QryIop extends Qry {
         return (this.docIteratorIndex < this.invertedList.df);
     }
 
+    /**
+     *  Get a canonical string form of the query operator and its
+     *  arguments.  Operators that have the same canonical form produce
+     *  the same inverted list, so it is used as a cache key.  Operators
+     *  that cannot be cached return null, which is the default.
+     *  @return The canonical form, or null.
+     */
+    public String getCanonicalForm() {
+        return null;
+    }
+
+    /**
+     *  Determine whether the arguments of this operator must provide
+     *  positions.  By default arguments need positions only if this
+     *  operator's positions are needed.
+     *  @return True if the arguments need positions.
+     */
+    public boolean argsNeedPositions() {
+        return this.positionsNeeded;
+    }
+
+    /**
+     *  Record whether the locIterator of this operator is used.  If
+     *  not, the operator may produce a frequency-only inverted list.
+     *  @param needed True if positions are needed.
+     */
+    public void setPositionsNeeded(boolean needed) {
+        this.positionsNeeded = needed;
+    }
+
+    /**
+     *  Get the canonical form of an operator from the canonical forms
+     *  of its arguments.
+     *  @param operator The operator name and parameters, e.g., "#near/3".
+     *  @param unordered True if the order of the arguments doesn't matter.
+     *  @return The canonical form, or null if an argument has none.
+     */
+    protected String getCanonicalForm(String operator, boolean unordered) {
+
+        String[] forms = new String[this.args.size()];
+
+        for (int i = 0; i < forms.length; i++) {
+            forms[i] = ((QryIop) this.args.get(i)).getCanonicalForm();
+
+            if (forms[i] == null)
+                return null;
+        }
+
+        if (unordered)
+            Arrays.sort(forms);
+
+        return operator + "(" + String.join(" ", forms) + ")";
+    }
+
     /**
      *  Get the collection term frequency (ctf) associated with this
      *  query operator.  It is an error to call this method before the
@@ -151,6 +217,17 @@ public abstract class QryIop extends Qry {
         return this.invertedList.df;
     }
 
+    /**
+     *  Get an upper bound on the term frequency of any document in the
+     *  inverted list.  It is an error to call this method before the
+     *  object's initialize method is called.
+     *  @return The largest term frequency in the inverted list.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public int getMaxTf() throws IOException {
+        return this.invertedList.getMaxTf();
+    }
+
     /**
      *  Get the field associated with this query operator.
      *  @return The field associated with this query operator.
@@ -162,27 +239,64 @@ public abstract class QryIop extends Qry {
     /**
      *  Evaluate the query operator; the result is an internal inverted
      *  list that may be accessed via the internal iterators.
+     *  @param index The index that the query is evaluated against.
      *  @throws IOException Error accessing the Lucene index.
      */
-    protected abstract void evaluate() throws IOException;
+    protected abstract void evaluate(IndexContext index) throws IOException;
 
     /**
      *  Initialize the query operator (and its arguments), including any
      *  internal iterators; this method must be called before iteration
      *  can begin.
-     *  @param r A retrieval model (that is ignored)
+     *  @param r A retrieval model, which provides the index
      */
     public void initialize(RetrievalModel r) throws IOException {
 
-        //  Initialize the query arguments (if any).
+        IndexContext index = r.getIndexContext();
 
-        for (Qry q_i : this.args) {
-            ((QryIop) q_i).initialize(r);
-        }
+        //  An operator that an earlier query already evaluated is not
+        //  evaluated again; its arguments are not even initialized.
+
+        InvListCache cache = (this.args.size() > 0) ?
+                index.getQryIopCache() : index.getInvListCache();
+        String form = (cache != null) ? this.getCanonicalForm() : null;
+        PostingList cachedList = (form != null) ? cache.get(index, form) : null;
+
+        if (cachedList != null) {
+            this.invertedList = cachedList.view();
+        } else {
+
+            //  Initialize the query arguments (if any).
+
+            for (Qry q_i : this.args) {
+                ((QryIop) q_i).initialize(r);
+            }
 
-        //  Evaluate the operator.
+            //  Evaluate the operator.
 
-        this.evaluate();
+            this.evaluate(index);
+
+            //  Inverted lists that are derived from query arguments (e.g., by
+            //  #SYN or #NEAR/n) live until the query is done, so they are
+            //  kept block-compressed.
+
+            if (this.invertedList != null) {
+                if ((this.args.size() > 0) && index.isCompressDerivedLists() &&
+                        this.invertedList.hasPositions()) {
+                    this.invertedList = new InvListCompressed(this.invertedList);
+                } else if (this.invertedList instanceof InvList) {
+                    ((InvList) this.invertedList).trimToSize();
+                }
+
+                //  The cached list is shared, so this operator iterates
+                //  over its own view of it, like later cache hits do.
+
+                if (form != null) {
+                    cache.put(index, form, this.invertedList);
+                    this.invertedList = this.invertedList.view();
+                }
+            }
+        }
 
         //  Initialize the internal iterators.
 
@@ -204,11 +318,11 @@ public abstract class QryIop extends Qry {
      *  @param loc The location to advance beyond.
      */
     public void locIteratorAdvancePast(int loc) {
-        int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-        Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+        int tf = this.invertedList.getTf(this.docIteratorIndex);
 
         while ((this.locIteratorIndex < tf) &&
-                (positions.get(this.locIteratorIndex) <= loc)) {
+                (this.invertedList.getPosition(this.docIteratorIndex,
+                        this.locIteratorIndex) <= loc)) {
             locIteratorIndex++;
         }
     }
@@ -219,7 +333,7 @@ public abstract class QryIop extends Qry {
      */
     public void locIteratorFinish() {
         this.locIteratorIndex =
-                this.invertedList.postings.get(this.docIteratorIndex).tf;
+                this.invertedList.getTf(this.docIteratorIndex);
     }
 
     /**
@@ -230,8 +344,8 @@ public abstract class QryIop extends Qry {
      *  @return The internal id of the current document.
      */
     public int locIteratorGetMatch() {
-        Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-        return locations.get(this.locIteratorIndex);
+        return this.invertedList.getPosition(this.docIteratorIndex,
+                this.locIteratorIndex);
     }
 
     /**
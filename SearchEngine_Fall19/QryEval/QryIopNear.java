@@ -8,6 +8,8 @@ import java.util.*;
 public class QryIopNear extends QryIop {
 
     private int n; // the parameter parsed from #near/n
+    private int[] positions = new int[16]; // locations of the matches in the current doc
+    private int positionsLength = 0;
 
     public QryIopNear(int n) {
         this.n = n;
@@ -17,12 +19,23 @@ public class QryIopNear extends QryIop {
     }
 
     @Override
-    protected void evaluate() throws IOException {
+    public String getCanonicalForm() {
+        return this.getCanonicalForm("#near/" + this.n, false);
+    }
+
+    @Override
+    public boolean argsNeedPositions() {
+        return true;    // positions of the arguments are compared
+    }
+
+    @Override
+    protected void evaluate(IndexContext index) throws IOException {
 
         //  Create an empty inverted list.  If there are no query arguments,
         //  this is the final result.
 
-        this.invertedList = new InvList(this.getField());
+        InvList list = new InvList(this.getField());
+        this.invertedList = list;
 
         if (args.size() == 0) {
             return;
@@ -45,7 +58,7 @@ public class QryIopNear extends QryIop {
             //  Note:  This implementation only considers a term ONCE to match near/n
             // for instance, a1 x x a2 x b -> #near/4 (a b) will return null since b is considered unmatched with a1
 
-            List<Integer> positions = new ArrayList<Integer>();// store right-most index of matching near #/n term pairs
+            this.positionsLength = 0;// reset right-most index of matching near #/n term pairs
             List<Integer> locationVector = new ArrayList<>(this.args.size()); // store locations of each term in a vector
 
 
@@ -60,7 +73,7 @@ public class QryIopNear extends QryIop {
 
                 if (satisfyMatch(locationVector, n)) {
 
-                    positions.add(locationVector.get(locationVector.size() - 1));
+                    addPosition(locationVector.get(locationVector.size() - 1));
                     locationVector.clear();
                     locIteratorAdvanceAll();
 
@@ -83,16 +96,24 @@ public class QryIopNear extends QryIop {
                 }
             }
 
-            appendPosting(maxDocid, positions);
+            appendPosting(list, maxDocid);
             docIteratorAdvanceAll(maxDocid);
         }
     }
 
     // append matched near/n doc and loc information to invertedlist
-    private void appendPosting(int maxDocid, List<Integer> positions) {
-        if (positions.size() > 0) {
-            this.invertedList.appendPosting(maxDocid, positions);
+    private void appendPosting(InvList list, int maxDocid) {
+        if (this.positionsLength > 0) {
+            list.appendPosting(maxDocid, this.positions, this.positionsLength);
+        }
+    }
+
+    // record the location of a match in the current doc
+    private void addPosition(int location) {
+        if (this.positionsLength == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, this.positionsLength * 2);
         }
+        this.positions[this.positionsLength++] = location;
     }
 
     //  Find the next document id that contains all query terms. If there is none, we're done.
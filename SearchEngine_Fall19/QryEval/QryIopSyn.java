@@ -10,65 +10,235 @@ import java.util.*;
  */
 public class QryIopSyn extends QryIop {
 
+    /**
+     *  Get the canonical form of this query operator.  The order of the
+     *  arguments of #SYN doesn't matter.
+     *  @return The canonical form, or null.
+     */
+    public String getCanonicalForm() {
+        return this.getCanonicalForm("#syn", true);
+    }
+
+    /**
+     *  The arguments of #SYN need positions if its own positions are
+     *  needed, or if an argument is not a TERM.  Distinct terms never
+     *  occur at the same position, so the tf of a #SYN of terms is the
+     *  sum of the tfs of its distinct terms.
+     *  @return True if the arguments need positions.
+     */
+    @Override
+    public boolean argsNeedPositions() {
+
+        if (this.positionsNeeded)
+            return true;
+
+        for (Qry q_i : this.args) {
+            if (!(q_i instanceof QryIopTerm))
+                return true;
+        }
+
+        return false;
+    }
+
     /**
      *  Evaluate the query operator; the result is an internal inverted
      *  list that may be accessed via the internal iterators.
+     *  <p>
+     *  The argument lists are combined with a k-way merge.  A min-heap
+     *  of argument indexes, ordered by each argument's current docid,
+     *  finds the arguments that match the next document; a second
+     *  min-heap, ordered by each argument's current location, merges
+     *  their positions in order.  A position that occurs in several
+     *  arguments is stored once, so #SYN (apple apple) matches the
+     *  same positions as apple.  If the arguments have no positions
+     *  (see argsNeedPositions), the tfs of the distinct arguments are
+     *  added, and the result is a frequency-only list.
+     *  </p>
+     *  @param index The index that the query is evaluated against.
      *  @throws IOException Error accessing the Lucene index.
      */
-    protected void evaluate() throws IOException {
+    protected void evaluate(IndexContext index) throws IOException {
 
         //  Create an empty inverted list.  If there are no query arguments,
         //  this is the final result.
 
-        this.invertedList = new InvList(this.getField());
+        InvList list = new InvList(this.getField());
+        this.invertedList = list;
 
         if (args.size() == 0) {
             return;
         }
 
+        //  Build the docid heap from the arguments that have postings.
+        //  keys[i] is the current docid (or location) of argument i.
+
+        boolean frequencies = !this.argsNeedPositions();
+        Set<String> forms = new HashSet<String>();
+        int k = this.args.size();
+        QryIop[] iops = new QryIop[k];
+        int[] docHeap = new int[k];
+        int[] docKeys = new int[k];
+        int docHeapSize = 0;
+
+        for (int i = 0; i < k; i++) {
+            iops[i] = (QryIop) this.args.get(i);
+
+            //  Without positions, repeated terms must be skipped.
+
+            if (frequencies && !forms.add(iops[i].getCanonicalForm()))
+                continue;
+
+            if (iops[i].docIteratorHasMatch(null)) {
+                docKeys[i] = iops[i].docIteratorGetMatch();
+                docHeap[docHeapSize++] = i;
+            }
+        }
+
+        for (int i = docHeapSize / 2 - 1; i >= 0; i--)
+            siftDown(docHeap, docHeapSize, docKeys, i);
+
+        //  Scratch space that is reused for every posting.
+
+        int[] matched = new int[k];
+        int[] locHeap = new int[k];
+        int[] locKeys = new int[k];
+        int[] positions = new int[16];
+
         //  Each pass of the loop adds 1 document to result inverted list
         //  until all of the argument inverted lists are depleted.
 
-        while (true) {
+        while (docHeapSize > 0) {
 
-            //  Find the minimum next document id.  If there is none, we're done.
+            //  Remove every argument that matches the minimum docid.
 
-            int minDocid = Qry.INVALID_DOCID;
+            int minDocid = docKeys[docHeap[0]];
+            int m = 0;
 
-            for (Qry q_i : this.args) {
-                if (q_i.docIteratorHasMatch(null)) {
-                    int q_iDocid = q_i.docIteratorGetMatch();
+            while ((docHeapSize > 0) && (docKeys[docHeap[0]] == minDocid)) {
+                matched[m++] = docHeap[0];
+                docHeap[0] = docHeap[--docHeapSize];
+                siftDown(docHeap, docHeapSize, docKeys, 0);
+            }
+
+            //  Add the tfs of the matching arguments, or merge their
+            //  positions.
+
+            if (frequencies) {
+                int tf = 0;
+
+                for (int j = 0; j < m; j++)
+                    tf += iops[matched[j]].docIteratorGetMatchTf();
 
-                    if ((minDocid > q_iDocid) ||
-                            (minDocid == Qry.INVALID_DOCID)) {
-                        minDocid = q_iDocid;
+                list.appendPosting(minDocid, tf);
+            } else {
+                int locHeapSize = 0;
+
+                for (int j = 0; j < m; j++) {
+                    int a = matched[j];
+
+                    if (iops[a].locIteratorHasMatch()) {
+                        locKeys[a] = iops[a].locIteratorGetMatch();
+                        locHeap[locHeapSize++] = a;
                     }
                 }
-            }
 
-            if (minDocid == Qry.INVALID_DOCID)
-                break;                // to-delete WHY? All docids have been processed.  Done.
+                for (int i = locHeapSize / 2 - 1; i >= 0; i--)
+                    siftDown(locHeap, locHeapSize, locKeys, i);
 
-            //  Create a new posting that is the union of the posting lists
-            //  that match the minDocid.  Save it.
-            //  Note:  This implementation assumes that a location will not appear
-            //  in two or more arguments.  #SYN (apple apple) would break it.
+                int tf = 0;
 
-            List<Integer> positions = new ArrayList<Integer>();
+                while (locHeapSize > 0) {
+                    int a = locHeap[0];
+                    int loc = locKeys[a];
 
-            for (Qry q_i : this.args) {
-                if (q_i.docIteratorHasMatch(null) &&
-                        (q_i.docIteratorGetMatch() == minDocid)) {
-                    Vector<Integer> locations_i =
-                            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-                    positions.addAll(locations_i);
-                    q_i.docIteratorAdvancePast(minDocid);
+                    if ((tf == 0) || (positions[tf - 1] != loc)) {
+                        if (tf == positions.length) {
+                            positions = Arrays.copyOf(positions, tf * 2);
+                        }
+                        positions[tf++] = loc;
+                    }
+
+                    iops[a].locIteratorAdvance();
+
+                    if (iops[a].locIteratorHasMatch()) {
+                        locKeys[a] = iops[a].locIteratorGetMatch();
+                    } else {
+                        locHeap[0] = locHeap[--locHeapSize];
+                    }
+
+                    siftDown(locHeap, locHeapSize, locKeys, 0);
                 }
+
+                list.appendPosting(minDocid, positions, tf);
             }
 
-            Collections.sort(positions);
-            this.invertedList.appendPosting(minDocid, positions);
+            //  Advance the matching arguments and put them back in the heap.
+
+            for (int j = 0; j < m; j++) {
+                int a = matched[j];
+                iops[a].docIteratorAdvancePast(minDocid);
+
+                if (iops[a].docIteratorHasMatch(null)) {
+                    docKeys[a] = iops[a].docIteratorGetMatch();
+                    docHeap[docHeapSize++] = a;
+                    siftUp(docHeap, docKeys, docHeapSize - 1);
+                }
+            }
         }
     }
 
+    /**
+     *  Restore the heap property below a heap entry.
+     *  @param heap Argument indexes, ordered by their keys.
+     *  @param size The number of entries in the heap.
+     *  @param keys The key of each argument.
+     *  @param i The heap entry that may be too large.
+     */
+    private static void siftDown(int[] heap, int size, int[] keys, int i) {
+
+        int a = heap[i];
+        int key = keys[a];
+
+        while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= size)
+                break;
+
+            if ((child + 1 < size) && (keys[heap[child + 1]] < keys[heap[child]]))
+                child++;
+
+            if (keys[heap[child]] >= key)
+                break;
+
+            heap[i] = heap[child];
+            i = child;
+        }
+
+        heap[i] = a;
+    }
+
+    /**
+     *  Restore the heap property above a heap entry.
+     *  @param heap Argument indexes, ordered by their keys.
+     *  @param keys The key of each argument.
+     *  @param i The heap entry that may be too small.
+     */
+    private static void siftUp(int[] heap, int[] keys, int i) {
+
+        int a = heap[i];
+        int key = keys[a];
+
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+
+            if (keys[heap[parent]] <= key)
+                break;
+
+            heap[i] = heap[parent];
+            i = parent;
+        }
+
+        heap[i] = a;
+    }
 }
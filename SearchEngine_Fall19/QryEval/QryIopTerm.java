@@ -5,18 +5,61 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the TERM operator does not materialize its inverted list.
+ *  Its df and ctf are read from the index statistics, and its
+ *  docIterator and locIterator walk Lucene's per-segment PostingsEnum
+ *  cursors, moving from one LeafReaderContext to the next as each
+ *  segment is exhausted.  Memory use is constant per term.  Call
+ *  IndexContext.setStreamPostings(false) to read full inverted lists
+ *  instead.  When the index has an InvListCache, inverted lists are
+ *  materialized and cached instead, so that they can be reused by
+ *  later queries.  Terms that are stored in the HotPostingsFile of the
+ *  index use its memory-mapped inverted lists.  When the locIterator
+ *  of the term is not used (see QryIop.setPositionsNeeded), only
+ *  docids and frequencies are read from Lucene.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
     private String term;
 
+    //  Streaming state.  The postings cursor is null when the iterator
+    //  is exhausted.
+
+    private Term luceneTerm;
+    private List<LeafReaderContext> leaves;
+    private int leafIndex;
+    private int leafDocBase;
+    private PostingsEnum postings = null;
+    private int docid = Qry.INVALID_DOCID;
+    private int df = 0;
+    private int ctf = 0;
+
+    /**
+     *  The largest term frequency of the streamed list, or -1 if it
+     *  hasn't been computed yet.
+     */
+    private int streamMaxTf = -1;
+
+    //  Positions of the current document are read from Lucene only if
+    //  the locIterator is used.
+
+    private int[] locations = new int[16];
+    private int locationsDocid = Qry.INVALID_DOCID;
+    private int locationsLength = 0;
+    private int locIteratorIndex = 0;
+
     /**
      *  The term is assumed to match the body field.
      *  @param termString A term string.
@@ -36,13 +79,350 @@ public class QryIopTerm extends QryIop {
         this.field = fieldString;
     }
 
+    /**
+     *  Get the term string.
+     *  @return The processed (stemmed, lower-cased, etc) term string.
+     */
+    public String getTerm() {
+        return this.term;
+    }
+
     /**
      *  Evaluate the query operator; the result is an internal inverted
-     *  list that may be accessed via the internal iterators.
+     *  list that may be accessed via the internal iterators.  In
+     *  streaming mode, only the postings cursor of the first segment
+     *  that contains the term is opened.
+     *  @param index The index that the query is evaluated against.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    protected void evaluate(IndexContext index) throws IOException {
+
+        //  Frequent query terms may have a memory-mapped inverted list.
+
+        HotPostingsFile hotPostings = index.getHotPostings();
+
+        if (hotPostings != null) {
+            this.invertedList = hotPostings.getInvList(this.term, this.field);
+
+            if (this.invertedList != null)
+                return;
+        }
+
+        //  When inverted lists are cached, the list is materialized so
+        //  that QryIop.initialize can cache it for later queries.
+
+        if ((!index.isStreamPostings()) || (index.getInvListCache() != null)) {
+            this.invertedList =
+                    new InvList(index, this.term, this.field, this.positionsNeeded);
+            return;
+        }
+
+        this.invertedList = null;
+        this.luceneTerm = new Term(this.field, new BytesRef(this.term));
+        this.df = index.getReader().docFreq(this.luceneTerm);
+        this.ctf = (this.df < 1) ? 0 :
+                (int) index.getReader().totalTermFreq(this.luceneTerm);
+        this.leaves = index.getReader().leaves();
+        this.leafIndex = -1;
+        this.streamMaxTf = -1;
+        this.locationsDocid = Qry.INVALID_DOCID;
+        this.locIteratorIndex = 0;
+
+        if (this.df < 1) {
+            this.postings = null;
+        } else {
+            this.streamNextLeaf();
+        }
+    }
+
+    /**
+     *  Open the postings cursor of the next segment that contains the
+     *  term, and position it on the segment's first document.  If no
+     *  segment remains, the iterator is exhausted.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void streamNextLeaf() throws IOException {
+
+        this.postings = null;
+
+        while (++this.leafIndex < this.leaves.size()) {
+            LeafReaderContext context = this.leaves.get(this.leafIndex);
+            PostingsEnum p = context.reader().postings(this.luceneTerm,
+                    this.positionsNeeded ? PostingsEnum.POSITIONS : PostingsEnum.FREQS);
+
+            if ((p != null) && (p.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)) {
+                this.postings = p;
+                this.leafDocBase = context.docBase;
+                this.docid = context.docBase + p.docID();
+                return;
+            }
+        }
+    }
+
+    /**
+     *  Find the largest term frequency of the term without reading its
+     *  postings.  Lucene's skip data records the impacts (tf, norm) of
+     *  each block of postings; the top level of the skip list has a few
+     *  large blocks that span the segment.  The postings after the last
+     *  skip entry, and lists that are too short to have skip data, have
+     *  a dummy impact instead, so those postings (fewer than a block)
+     *  are read.  A segment's bound is never more than its ctf - df + 1.
+     *  @return The largest term frequency.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private int streamGetMaxTf() throws IOException {
+
+        int maxTf = 0;
+
+        for (LeafReaderContext context : this.leaves) {
+            Terms terms = context.reader().terms(this.field);
+
+            if (terms == null)
+                continue;
+
+            TermsEnum termsEnum = terms.iterator();
+
+            if (!termsEnum.seekExact(this.luceneTerm.bytes()))
+                continue;
+
+            long leafMaxTf = termsEnum.totalTermFreq() - termsEnum.docFreq() + 1;
+
+            if (leafMaxTf <= maxTf)
+                continue;
+
+            ImpactsEnum postings = termsEnum.impacts(PostingsEnum.FREQS);
+            int max = 0;
+            int upTo = -1;
+
+            while (upTo != DocIdSetIterator.NO_MORE_DOCS) {
+                postings.advanceShallow(upTo + 1);
+
+                Impacts impacts = postings.getImpacts();
+                int top = impacts.numLevels() - 1;
+                boolean dummy = false;
+
+                for (Impact impact : impacts.getImpacts(top)) {
+                    if (impact.freq == Integer.MAX_VALUE)
+                        dummy = true;
+                    else
+                        max = Math.max(max, impact.freq);
+                }
+
+                if (dummy) {
+                    for (int doc = postings.advance(upTo + 1);
+                         doc != DocIdSetIterator.NO_MORE_DOCS;
+                         doc = postings.nextDoc()) {
+                        max = Math.max(max, postings.freq());
+                    }
+                    break;
+                }
+
+                upTo = impacts.getDocIdUpTo(top);
+            }
+
+            maxTf = (int) Math.max(maxTf, Math.min(max, leafMaxTf));
+        }
+
+        return maxTf;
+    }
+
+    /**
+     *  Move the postings cursor to the first document whose internal
+     *  id is at least target, crossing segment boundaries as needed.
+     *  @param target The document's internal document id
+     */
+    private void streamAdvanceTo(int target) {
+
+        try {
+            while ((this.postings != null) && (this.docid < target)) {
+                int leafDocid = this.postings.advance(target - this.leafDocBase);
+
+                if (leafDocid != DocIdSetIterator.NO_MORE_DOCS) {
+                    this.docid = this.leafDocBase + leafDocid;
+                } else {
+                    this.streamNextLeaf();
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(
+                    "Error reading the postings of " + this, ex);
+        }
+
+        this.locIteratorIndex = 0;
+    }
+
+    /**
+     *  Read the positions of the current document, if they have not
+     *  been read already.
+     */
+    private void streamLoadLocations() {
+
+        if (this.locationsDocid == this.docid) {
+            return;
+        }
+
+        try {
+            int tf = this.postings.freq();
+
+            if (tf > this.locations.length) {
+                this.locations = new int[Math.max(tf, this.locations.length * 2)];
+            }
+
+            for (int j = 0; j < tf; j++) {
+                this.locations[j] = this.postings.nextPosition();
+            }
+
+            this.locationsLength = tf;
+            this.locationsDocid = this.docid;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(
+                    "Error reading the positions of " + this, ex);
+        }
+    }
+
+    public void docIteratorAdvancePast(int docid) {
+        if (this.invertedList != null) {
+            super.docIteratorAdvancePast(docid);
+        } else if (docid == Integer.MAX_VALUE) {
+            this.docIteratorFinish();
+        } else {
+            this.streamAdvanceTo(docid + 1);
+        }
+    }
+
+    public void docIteratorAdvanceTo(int docid) {
+        if (this.invertedList != null) {
+            super.docIteratorAdvanceTo(docid);
+        } else {
+            this.streamAdvanceTo(docid);
+        }
+    }
+
+    public void docIteratorFinish() {
+        if (this.invertedList != null) {
+            super.docIteratorFinish();
+        } else {
+            this.postings = null;
+        }
+    }
+
+    public int docIteratorGetMatch() {
+        if (this.invertedList != null) {
+            return super.docIteratorGetMatch();
+        }
+        return this.docid;
+    }
+
+    public int docIteratorGetMatchTf() {
+        if (this.invertedList != null) {
+            return super.docIteratorGetMatchTf();
+        }
+
+        try {
+            return this.postings.freq();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(
+                    "Error reading the postings of " + this, ex);
+        }
+    }
+
+    public boolean docIteratorHasMatch(RetrievalModel r) {
+        if (this.invertedList != null) {
+            return super.docIteratorHasMatch(r);
+        }
+        return (this.postings != null);
+    }
+
+    public int getCtf() {
+        if (this.invertedList != null) {
+            return super.getCtf();
+        }
+        return this.ctf;
+    }
+
+    public int getDf() {
+        if (this.invertedList != null) {
+            return super.getDf();
+        }
+        return this.df;
+    }
+
+    /**
+     *  Get the largest term frequency of any document.  A streamed list
+     *  isn't read ahead, so the first request reads it from the impacts
+     *  of each segment (see streamGetMaxTf).
+     *  @return The largest term frequency in the inverted list.
      *  @throws IOException Error accessing the Lucene index.
      */
-    protected void evaluate() throws IOException {
-        this.invertedList = new InvList(this.term, this.field);
+    public int getMaxTf() throws IOException {
+        if (this.invertedList != null) {
+            return super.getMaxTf();
+        }
+
+        if (this.streamMaxTf < 0) {
+            this.streamMaxTf = (this.df < 1) ? 0 : this.streamGetMaxTf();
+        }
+
+        return this.streamMaxTf;
+    }
+
+    public void locIteratorAdvance() {
+        if (this.invertedList != null) {
+            super.locIteratorAdvance();
+        } else {
+            this.locIteratorIndex++;
+        }
+    }
+
+    public void locIteratorAdvancePast(int loc) {
+        if (this.invertedList != null) {
+            super.locIteratorAdvancePast(loc);
+            return;
+        }
+
+        this.streamLoadLocations();
+
+        while ((this.locIteratorIndex < this.locationsLength) &&
+                (this.locations[this.locIteratorIndex] <= loc)) {
+            this.locIteratorIndex++;
+        }
+    }
+
+    public void locIteratorFinish() {
+        if (this.invertedList != null) {
+            super.locIteratorFinish();
+        } else {
+            this.streamLoadLocations();
+            this.locIteratorIndex = this.locationsLength;
+        }
+    }
+
+    public int locIteratorGetMatch() {
+        if (this.invertedList != null) {
+            return super.locIteratorGetMatch();
+        }
+
+        this.streamLoadLocations();
+        return this.locations[this.locIteratorIndex];
+    }
+
+    public boolean locIteratorHasMatch() {
+        if (this.invertedList != null) {
+            return super.locIteratorHasMatch();
+        }
+
+        this.streamLoadLocations();
+        return (this.locIteratorIndex < this.locationsLength);
+    }
+
+    /**
+     *  Get the canonical form of this query operator.
+     *  @return The canonical form of this query operator.
+     */
+    public String getCanonicalForm() {
+        return (this.positionsNeeded) ?
+                (this.term + "." + this.field) :
+                (this.term + "." + this.field + "/tf");
     }
 
     /**
@@ -5,6 +5,8 @@ import java.util.*;
 public class QryIopWindow extends QryIop {
     private int n; // the parameter parsed from #near/n
     private int maxLoc = -1;// the max location index satisfying window/n
+    private int[] positions = new int[16]; // locations of the matches in the current doc
+    private int positionsLength = 0;
 
     public QryIopWindow(int n) {
         this.n = n;
@@ -14,11 +16,22 @@ public class QryIopWindow extends QryIop {
     }
 
     @Override
-    protected void evaluate() throws IOException {
+    public String getCanonicalForm() {
+        return this.getCanonicalForm("#window/" + this.n, false);
+    }
+
+    @Override
+    public boolean argsNeedPositions() {
+        return true;    // positions of the arguments are compared
+    }
+
+    @Override
+    protected void evaluate(IndexContext index) throws IOException {
         //  Create an empty inverted list.  If there are no query arguments,
         //  this is the final result.
 
-        this.invertedList = new InvList(this.getField());
+        InvList list = new InvList(this.getField());
+        this.invertedList = list;
 
         if (args.size() == 0) {
             return;
@@ -40,7 +53,7 @@ public class QryIopWindow extends QryIop {
             //  Note:  This implementation only considers a term ONCE to match near/n
             // for instance, a1 x x a2 x b -> #window/4 (a b) will return null since b is considered unmatched with a1
 
-            List<Integer> positions = new ArrayList<Integer>();// store right-most index of matching near #/n term pairs
+            this.positionsLength = 0;// reset right-most index of matching near #/n term pairs
             PriorityQueue<QryIop> locationHeap = new PriorityQueue<>(this.args.size(), new QryIoPWindowComparator());
             maxLoc = -1;
             //store QryIop in a minHeap in terms of loc index
@@ -53,7 +66,7 @@ public class QryIopWindow extends QryIop {
 
             while (true) {
                 if (satisfyMatch(locationHeap)) {// max-min <= n
-                    positions.add(maxLoc);
+                    addPosition(maxLoc);
                     locationHeap.clear();
                     maxLoc = -1;
                     locIteratorAdvanceAll();
@@ -77,7 +90,7 @@ public class QryIopWindow extends QryIop {
                 }
             }
 
-            appendPosting(maxDocid, positions);
+            appendPosting(list, maxDocid);
             docIteratorAdvanceAll(maxDocid);
         }
 
@@ -181,10 +194,18 @@ public class QryIopWindow extends QryIop {
     }
 
     // append matched window/n doc and loc information to invertedlist
-    private void appendPosting(int maxDocid, List<Integer> positions) {
-        if (positions.size() > 0) {
-            this.invertedList.appendPosting(maxDocid, positions);
+    private void appendPosting(InvList list, int maxDocid) {
+        if (this.positionsLength > 0) {
+            list.appendPosting(maxDocid, this.positions, this.positionsLength);
+        }
+    }
+
+    // record the location of a match in the current doc
+    private void addPosition(int location) {
+        if (this.positionsLength == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, this.positionsLength * 2);
         }
+        this.positions[this.positionsLength++] = location;
     }
 
     /**
@@ -196,6 +196,10 @@ public class QryParser {
 
         Qry q = parseString(queryString);        // An exact parse
         q = optimizeQuery(q);            // An optimized parse
+
+        if (q != null)
+            markPositionsNeeded(q, true);
+
         return q;
     }
 
@@ -226,6 +230,30 @@ public class QryParser {
     }
 
 
+    /**
+     * Record which inverted list operators need positions.  Positions
+     * are needed only by operators such as #NEAR/n and #WINDOW/n that
+     * compare locations, and by their arguments; operators whose parent
+     * is a score operator (e.g., #SCORE, #AND) only need tfs, so they
+     * can read cheaper frequency-only postings.
+     *
+     * @param q      The query (or subquery) to mark.
+     * @param needed True if the parent of q uses its positions.
+     */
+    private static void markPositionsNeeded(Qry q, boolean needed) {
+
+        boolean argsNeeded = false;
+
+        if (q instanceof QryIop) {
+            ((QryIop) q).setPositionsNeeded(needed);
+            argsNeeded = ((QryIop) q).argsNeedPositions();
+        }
+
+        for (Qry q_i : q.args) {
+            markPositionsNeeded(q_i, argsNeeded);
+        }
+    }
+
     /**
      * Optimize the query by removing degenerate nodes produced during
      * query parsing, for example '#NEAR/1 (of the)' which turns into
@@ -15,6 +15,18 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+    /**
+     * The compiled Indri default score of this subtree, or null if the
+     * subtree isn't scored by Indri or can't be compiled.
+     */
+    protected IndriDefaultScore indriDefault = null;
+
+    /**
+     * True if this operator is an argument of another QrySop.  Only the
+     * root of a query compiles the Indri default score.
+     */
+    private boolean nested = false;
+
     /**
      * Get a score for the document that docIteratorHasMatch matched.
      *
@@ -34,6 +46,17 @@ public abstract class QrySop extends Qry {
     public abstract double getDefaultScore(RetrievalModel r, int doc_id)
             throws IOException;
 
+    /**
+     * Determine whether a retrieval model scores documents with log
+     * probabilities.
+     *
+     * @param r The retrieval model.
+     * @return True for an Indri model in log space.
+     */
+    protected static boolean isLogSpace(RetrievalModel r) {
+        return (r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace();
+    }
+
     /**
      * Initialize the query operator (and its arguments), including any
      * internal iterators.  If the query operator is of type QryIop, it
@@ -45,8 +68,19 @@ public abstract class QrySop extends Qry {
      */
     public void initialize(RetrievalModel r) throws IOException {
         for (Qry q_i : this.args) {
+            if (q_i instanceof QrySop) {
+                ((QrySop) q_i).nested = true;
+            }
             q_i.initialize(r);
         }
+
+        // The constants of the #SCORE leaves are known once the
+        // arguments are initialized.  The root compiles the whole query,
+        // and each operator in it gets its part of the program.
+
+        if ((!this.nested) && (r instanceof RetrievalModelIndri)) {
+            IndriDefaultScore.compile(this, (RetrievalModelIndri) r);
+        }
     }
 
 
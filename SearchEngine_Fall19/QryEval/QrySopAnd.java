@@ -50,6 +50,16 @@ public class QrySopAnd extends QrySop {
 
     @Override
     public double getDefaultScore(RetrievalModel r, int doc_id) throws IOException {
+        if ((this.indriDefault != null) && (r instanceof RetrievalModelIndri)) {
+            return this.indriDefault.score(doc_id);
+        }
+        if (isLogSpace(r)) {
+            double score = 0.0;
+            for (Qry qry : this.args) {
+                score += ((QrySop) qry).getDefaultScore(r, doc_id);
+            }
+            return score / this.args.size();
+        }
         double score = 1.0;
         for (Qry qry : this.args) {
             score *= ((QrySop) qry).getDefaultScore(r, doc_id);
@@ -84,23 +94,30 @@ public class QrySopAnd extends QrySop {
     }
 
     private double getScoreIndri(RetrievalModel r) throws IOException {
-        double score = 1.0;
+        boolean logSpace = isLogSpace(r);
+        double score = logSpace ? 0.0 : 1.0;
         if (this.docIteratorHasMatchCache()) {
             //call get score
             int doc_id = this.docIteratorGetMatch();
             for (Qry q_i : this.args) {
+                double s;
                 if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == doc_id) {
-                    score *= ((QrySop) q_i).getScore(r);
+                    s = ((QrySop) q_i).getScore(r);
                     //to-delete: only considers how scores combine in the current layer
                 } else {
-                    score *= ((QrySop) q_i).getDefaultScore(r, doc_id);
+                    s = ((QrySop) q_i).getDefaultScore(r, doc_id);
+                }
+                if (logSpace) {
+                    score += s;     // the geometric mean is a mean of logs
+                } else {
+                    score *= s;
                 }
             }
         } else {
             //if there is no match at all
-            return 1.0;// or 0.0?
+            return score;// or 0.0?
         }
-        return Math.pow(score, 1.0 / this.args.size());
+        return logSpace ? score / this.args.size() : Math.pow(score, 1.0 / this.args.size());
     }
 }
 
@@ -47,37 +47,45 @@ public class QrySopOr extends QrySop {
 
     public double getScoreIndri(RetrievalModel r) throws IOException {
         //to-delete: this is not required!
+        boolean logSpace = isLogSpace(r);
         double score;
         double multi = 1.0;
         if (this.docIteratorHasMatchCache()) {
             int doc_id = this.docIteratorGetMatch();
             for (Qry q_i : this.args) {
+                double s;
                 if (q_i.docIteratorHasMatchCache()) {
-                    multi *= (1 - ((QrySop) q_i).getScore(r));
+                    s = ((QrySop) q_i).getScore(r);
                 } else {
-                    multi *= (1 - ((QrySop) q_i).getDefaultScore(r, doc_id));
+                    s = ((QrySop) q_i).getDefaultScore(r, doc_id);
                 }
+                multi *= (1 - (logSpace ? Math.exp(s) : s));
             }
 
         } else {
-            return 1 - multi;
+            return logSpace ? Math.log(1 - multi) : 1 - multi;
         }
 
         score = 1 - multi;
-        return score;
+        return logSpace ? Math.log(score) : score;
     }
 
     //todo to-delete this is not required
     @Override
     public double getDefaultScore(RetrievalModel r, int doc_id) throws IOException {
+        if ((this.indriDefault != null) && (r instanceof RetrievalModelIndri)) {
+            return this.indriDefault.score(doc_id);
+        }
+        boolean logSpace = isLogSpace(r);
         double score;
         double multi = 1.0;
         for (Qry q_i : this.args) {
-            multi *= (1 - ((QrySop) q_i).getDefaultScore(r, doc_id));
+            double s = ((QrySop) q_i).getDefaultScore(r, doc_id);
+            multi *= (1 - (logSpace ? Math.exp(s) : s));
         }
 
         score = 1 - multi;
-        return score;
+        return logSpace ? Math.log(score) : score;
     }
 
 
@@ -13,9 +13,24 @@ public class QrySopScore extends QrySop {
 
     /**
      *  Document-independent values that should be determined just once.
-     *  Some retrieval models have these, some don't.
+     *  Some retrieval models have these, some don't.  They are set by
+     *  initialize, so that scoring a document is a few multiply-adds.
      */
 
+    //  BM25:  score = weight * tf / (tf + norms[docid]), where weight =
+    //  RSJ * userWeight, and norms is the LengthNorms BM25 table.
+
+    private double bm25Weight;
+    private double[] bm25Norms;
+
+    //  Indri:  score = (1 - lambda) * (tf + mu * mle) * norms[docid]
+    //  + lambda * mle, where norms is the LengthNorms Indri table.
+
+    private double[] indriNorms;
+    private double indriMuMle;
+    private double indriOneMinusLambda;
+    private double indriLambdaMle;
+
     /**
      * Indicates whether the query has a match.
      *
@@ -95,7 +110,7 @@ public class QrySopScore extends QrySop {
         if (!this.docIteratorHasMatchCache()) {
             return 0.0;//to-delete: unreachable?
         } else {
-            return this.getArg(0).docIteratorGetMatchPosting().tf;
+            return this.getArg(0).docIteratorGetMatchTf();
         }
     }
 
@@ -119,29 +134,59 @@ public class QrySopScore extends QrySop {
 
     // calculate BM25 score of one single inverted list e.g. #SCORE(apple)
     private double calculateBM25Score(QryIop qry, RetrievalModel r) throws IOException {
-        double k1 = ((RetrievalModelBM25) r).getK1();
-        double k3 = ((RetrievalModelBM25) r).getK3();
-        double b = ((RetrievalModelBM25) r).getB();
+
+        // tf weight; RSJ and user weight are folded into bm25Weight
+        int tf = qry.docIteratorGetMatchTf();
+
+        return this.bm25Weight * tf / (tf + this.bm25Norms[qry.docIteratorGetMatch()]);
+    }
+
+    /**
+     * Compute the document-independent parts of the BM25 score.
+     *
+     * @param qry The inverted list that is scored.
+     * @param r   The retrieval model.
+     * @throws IOException Error accessing the Lucene index
+     */
+    private void initializeBM25(QryIop qry, RetrievalModelBM25 r) throws IOException {
+        double k1 = r.getK1();
+        double k3 = r.getK3();
+        double b = r.getB();
 
         // RSJ
+        IndexContext index = r.getIndexContext();
+        CollectionStats stats = index.getCollectionStats(qry.getField());
         int df = qry.getDf();
-        long N = Idx.getNumDocs();
+        long N = stats.getNumDocs();
         double RSJ = Math.max(Math.log((N - df + 0.5) / (df + 0.5)), 0);
 
-        // tf weight
-        int tf = qry.docIteratorGetMatchPosting().tf;
-        int doc_id = qry.docIteratorGetMatch();
-        String field = qry.getField();
-        long docLength = Idx.getFieldLength(field, doc_id);
-        double avgDocLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
-        double tf_weight = tf / (tf + k1 * ((1 - b) + b * docLength / avgDocLen));
-
         //user weight
         //In this system -> Your BM25 queries will always have qtf=1
         int qtf = 1;
         double userWeight = (k3 + 1) * qtf / (k3 + qtf);
-        double score = RSJ * tf_weight * userWeight;
-        return score;
+
+        this.bm25Weight = RSJ * userWeight;
+        this.bm25Norms = index.getLengthNorms().getBM25(qry.getField(), k1, b);
+    }
+
+    /**
+     * Compute the document-independent parts of the Indri score.
+     *
+     * @param qry The inverted list that is scored.
+     * @param r   The retrieval model.
+     * @throws IOException Error accessing the Lucene index
+     */
+    private void initializeIndri(QryIop qry, RetrievalModelIndri r) throws IOException {
+        double lambda = r.getLambda();
+        double mu = r.getMu();
+        IndexContext index = r.getIndexContext();
+        double mle = 1.0 * qry.getCtf() /
+                index.getCollectionStats(qry.getField()).getSumTotalTermFreq();
+
+        this.indriNorms = index.getLengthNorms().getIndri(qry.getField(), mu);
+        this.indriMuMle = mu * mle;
+        this.indriOneMinusLambda = 1 - lambda;
+        this.indriLambdaMle = lambda * mle;
     }
 
     /**
@@ -168,7 +213,10 @@ public class QrySopScore extends QrySop {
     public double getScoreBM25(int doc_id, String field, List<String> terms, RetrievalModelLetor r) throws IOException {
         double score = 0;
 
-        TermVector termVector = new TermVector(doc_id, field);
+        IndexContext context = r.getIndexContext();
+        CollectionStats stats = context.getCollectionStats(field);
+        double norm = context.getLengthNorms().getBM25(field, r.k1, r.b)[doc_id];
+        TermVector termVector = new TermVector(context, doc_id, field);
         //Term vector for this field does not exist, setting the feature to zero after normalization.
         if (termVector.positionsLength() == 0 || termVector.stemsLength() == 0) {
             return Double.MIN_VALUE;
@@ -183,17 +231,13 @@ public class QrySopScore extends QrySop {
 
             // RSJ
             int df = termVector.stemDf(index);
-            long N = Idx.getNumDocs();
+            long N = stats.getNumDocs();
             double RSJ = Math.max(Math.log((N - df + 0.5) / (df + 0.5)), 0);
 
 
             // tf weight
-            double k1 = r.k1;
-            double b = r.b;
             int tf = termVector.stemFreq(index);
-            long docLength = Idx.getFieldLength(field, doc_id);
-            double avgDocLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
-            double tf_weight = tf / (tf + k1 * ((1 - b) + b * docLength / avgDocLen));
+            double tf_weight = tf / (tf + norm);
 
 
             //user weight
@@ -215,7 +259,7 @@ public class QrySopScore extends QrySop {
 
         QryIop qry = this.getArg(0);
         double score = calculateIndriScore(qry, r);
-        return score;
+        return ((RetrievalModelIndri) r).isLogSpace() ? Math.log(score) : score;
     }
 
     /**
@@ -232,10 +276,11 @@ public class QrySopScore extends QrySop {
         //Default: Indri #AND
 
         double score = 1;
-        long docLength = Idx.getFieldLength(field, doc_id);
+        IndexContext context = r.getIndexContext();
+        double norm = context.getLengthNorms().getIndri(field, r.mu)[doc_id];
 
-        long collectionLength = Idx.getSumOfFieldLengths(field);
-        TermVector termVector = new TermVector(doc_id, field);
+        long collectionLength = context.getCollectionStats(field).getSumTotalTermFreq();
+        TermVector termVector = new TermVector(context, doc_id, field);
 
         //Term vector for this field does not exist,  setting the feature to zero after normalization.
         if (termVector.positionsLength() == 0 || termVector.stemsLength() == 0) {
@@ -255,9 +300,9 @@ public class QrySopScore extends QrySop {
             double lambda = r.lambda;
             double mu = r.mu;
 
-            double ctf = Idx.getTotalTermFreq(field, term);
+            double ctf = context.getTotalTermFreq(field, term);
             double mle = ctf / collectionLength;
-            score *= (1 - lambda) * (tf + mu * mle) / (docLength + mu) + lambda * mle;
+            score *= (1 - lambda) * (tf + mu * mle) * norm + lambda * mle;
         }
 
         // if a field does not match any term of a query, the score for the field is 0.
@@ -272,36 +317,72 @@ public class QrySopScore extends QrySop {
 
 
     private double calculateIndriScore(QryIop qry, RetrievalModel r) throws IOException {
-        double score;
-        double lambda = ((RetrievalModelIndri) r).getLambda();
-        double mu = ((RetrievalModelIndri) r).getMu();
-        int tf = qry.docIteratorGetMatchPosting().tf;
+        int tf = qry.docIteratorGetMatchTf();
 
-        String field = qry.getField();
-        double mle = 1.0 * qry.getCtf() / Idx.getSumOfFieldLengths(field);
-        int doc_id = qry.docIteratorGetMatch();
-        long docLength = Idx.getFieldLength(field, doc_id);
-
-        score = (1 - lambda) * (tf + mu * mle) / (docLength + mu) + lambda * mle;
-        return score;
+        return this.indriOneMinusLambda * (tf + this.indriMuMle) *
+                this.indriNorms[qry.docIteratorGetMatch()] + this.indriLambdaMle;
     }
 
 
     private double getDefaultScoreIndri(RetrievalModel r, int doc_id) throws IOException {
         QryIop qry = this.getArg(0);
         double score = calculateDefaultIndriScore(qry, r, doc_id);
-        return score;
+        return ((RetrievalModelIndri) r).isLogSpace() ? Math.log(score) : score;
     }
 
     private double calculateDefaultIndriScore(QryIop qry, RetrievalModel r, int doc_id) throws IOException {
-        double lambda = ((RetrievalModelIndri) r).getLambda();
-        double mu = ((RetrievalModelIndri) r).getMu();
+        return this.indriOneMinusLambda * this.indriMuMle * this.indriNorms[doc_id]
+                + this.indriLambdaMle;
+    }
 
-        String field = qry.getField();
-        double mle = 1.0 * qry.getCtf() / Idx.getSumOfFieldLengths(field);
-        long docLength = Idx.getFieldLength(field, doc_id);
-        double score = (1 - lambda) * (mu * mle) / (docLength + mu) + lambda * mle;
-        return score;
+    /**
+     * Get the document-independent factor of the BM25 score, RSJ times
+     * the user weight.
+     *
+     * @return The BM25 term weight.
+     */
+    double getBM25Weight() {
+        return this.bm25Weight;
+    }
+
+    /**
+     * Get the BM25 length normalization table of the scored field.
+     *
+     * @return k1 * ((1 - b) + b * docLength / avgDocLen) for each
+     * document, or null if the operator wasn't initialized for BM25.
+     */
+    double[] getBM25Norms() {
+        return this.bm25Norms;
+    }
+
+    /**
+     * Get the part of the Indri default score that doesn't depend on
+     * the document, lambda * mle.
+     *
+     * @return The constant part of the default score.
+     */
+    double getIndriDefaultBase() {
+        return this.indriLambdaMle;
+    }
+
+    /**
+     * Get the factor of the Indri default score that multiplies the
+     * document's length normalization, (1 - lambda) * mu * mle.
+     *
+     * @return The length-dependent factor of the default score.
+     */
+    double getIndriDefaultScale() {
+        return this.indriOneMinusLambda * this.indriMuMle;
+    }
+
+    /**
+     * Get the Indri length normalization table of the scored field.
+     *
+     * @return 1 / (docLength + mu) for each document, or null if the
+     * operator wasn't initialized for Indri.
+     */
+    double[] getIndriNorms() {
+        return this.indriNorms;
     }
 
     /**
@@ -317,6 +398,14 @@ public class QrySopScore extends QrySop {
 
         Qry q = this.args.get(0);
         q.initialize(r);
+
+        //  The argument's df and ctf are known once it is initialized.
+
+        if (r instanceof RetrievalModelBM25) {
+            this.initializeBM25((QryIop) q, (RetrievalModelBM25) r);
+        } else if (r instanceof RetrievalModelIndri) {
+            this.initializeIndri((QryIop) q, (RetrievalModelIndri) r);
+        }
     }
 
     /**
@@ -326,13 +415,14 @@ public class QrySopScore extends QrySop {
      * @param doc_id
      * @param field
      * @param terms
+     * @param r The retrieval model, which provides the index
      * @return
      */
-    public double getTermOverlapPct(int doc_id, String field, List<String> terms) throws IOException {
+    public double getTermOverlapPct(int doc_id, String field, List<String> terms, RetrievalModelLetor r) throws IOException {
         if (terms.size() == 0) {
             return Double.MIN_VALUE;
         }
-        TermVector termVector = new TermVector(doc_id, field);
+        TermVector termVector = new TermVector(r.getIndexContext(), doc_id, field);
         //Term vector for this field does not exist
         if (termVector.positionsLength() == 0 || termVector.stemsLength() == 0) {
             return Double.MIN_VALUE;
@@ -6,6 +6,7 @@ import java.util.ArrayList;
  */
 public abstract class QrySopW extends QrySop {
     private ArrayList<Double> weightVector = new ArrayList<>();
+    private double[] normalizedWeights = null; // weight / sum of weights
 
 
     public void appendWeight(double weight) {
@@ -30,6 +31,27 @@ public abstract class QrySopW extends QrySop {
         }
         return this.weightVector.get(index);
     }
+    /**
+     * Get the weight of an argument divided by the sum of the weights,
+     * which is computed once, when the operator is initialized.
+     *
+     * @param index The index of the argument.
+     * @return The normalized weight.
+     */
+    public double getNormalizedWeight(int index) {
+        return this.normalizedWeights[index];
+    }
+
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        double sum = this.getSumofWeight();
+        this.normalizedWeights = new double[this.weightVector.size()];
+        for (int i = 0; i < this.normalizedWeights.length; i++) {
+            this.normalizedWeights[i] = this.weightVector.get(i) / sum;
+        }
+        super.initialize(r);
+    }
+
     public abstract double getScore(RetrievalModel r) throws IOException;
 
     public abstract double getDefaultScore(RetrievalModel r, int doc_id) throws IOException;
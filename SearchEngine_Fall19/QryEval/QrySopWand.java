@@ -21,6 +21,22 @@ public class QrySopWand extends QrySopW {
 
     private double getScoreIndri(RetrievalModel r) throws IOException {
 
+        if (isLogSpace(r)) {
+            double score = 0.0;
+            if (this.docIteratorHasMatchCache()) {
+                int doc_id = this.docIteratorGetMatch();
+                for (int i = 0; i < this.args.size(); i++) {
+                    Qry q_i = this.args.get(i);
+                    if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == doc_id) {
+                        score += this.getNormalizedWeight(i) * ((QrySop) q_i).getScore(r);
+                    } else {
+                        score += this.getNormalizedWeight(i) * ((QrySop) q_i).getDefaultScore(r, doc_id);
+                    }
+                }
+            }
+            return score;
+        }
+
         double score = 1.0;
         double sumWeight = this.getSumofWeight();
         if (this.docIteratorHasMatchCache()) {
@@ -40,9 +56,19 @@ public class QrySopWand extends QrySopW {
 
     @Override
     public double getDefaultScore(RetrievalModel r, int doc_id) throws IOException{
+        if ((this.indriDefault != null) && (r instanceof RetrievalModelIndri)) {
+            return this.indriDefault.score(doc_id);
+        }
         if(this.getSizeofWeight() != this.args.size()){
             throw new IllegalArgumentException("Weights not matching arguments!");
         }
+        if (isLogSpace(r)) {
+            double score = 0.0;
+            for (int i = 0; i < this.args.size(); i++) {
+                score += this.getNormalizedWeight(i) * ((QrySop) this.args.get(i)).getDefaultScore(r, doc_id);
+            }
+            return score;
+        }
         double score = 1.0;
         double sumWeight = this.getSumofWeight();
         for (int i = 0; i < this.args.size(); i++) {
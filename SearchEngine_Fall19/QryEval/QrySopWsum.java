@@ -2,6 +2,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 public class QrySopWsum extends QrySopW {
+    private double[] logs = null; // scratch space for log-space scores
 //    public QrySopWsum(ArrayList<Double> weightVector) {
 //        super(weightVector);
 //    }//to-delete
@@ -25,6 +26,23 @@ public class QrySopWsum extends QrySopW {
 
     private double getScoreIndri(RetrievalModel r) throws IOException {
 
+        if (isLogSpace(r)) {
+            if (!this.docIteratorHasMatchCache()) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            int doc_id = this.docIteratorGetMatch();
+            double[] logs = this.getLogs();
+            for (int i = 0; i < this.args.size(); i++) {
+                Qry q_i = this.args.get(i);
+                if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == doc_id) {
+                    logs[i] = ((QrySop) q_i).getScore(r);
+                } else {
+                    logs[i] = ((QrySop) q_i).getDefaultScore(r, doc_id);
+                }
+            }
+            return this.logWeightedSum(logs);
+        }
+
         double score = 0.0;
         double sumWeight = this.getSumofWeight();
         if (this.docIteratorHasMatchCache()) {
@@ -45,9 +63,19 @@ public class QrySopWsum extends QrySopW {
 
     @Override
     public double getDefaultScore(RetrievalModel r, int doc_id) throws IOException {
+        if ((this.indriDefault != null) && (r instanceof RetrievalModelIndri)) {
+            return this.indriDefault.score(doc_id);
+        }
         if(this.getSizeofWeight() != this.args.size()){
             throw new IllegalArgumentException("Weights not matching arguments!");
         }
+        if (isLogSpace(r)) {
+            double[] logs = this.getLogs();
+            for (int i = 0; i < this.args.size(); i++) {
+                logs[i] = ((QrySop) this.args.get(i)).getDefaultScore(r, doc_id);
+            }
+            return this.logWeightedSum(logs);
+        }
         double score = 0.0;
         double sumWeight = this.getSumofWeight();
         for (int i = 0; i < this.args.size(); i++) {
@@ -57,4 +85,34 @@ public class QrySopWsum extends QrySopW {
         }
         return score;
     }
+
+    private double[] getLogs() {
+        if ((this.logs == null) || (this.logs.length != this.args.size())) {
+            this.logs = new double[this.args.size()];
+        }
+        return this.logs;
+    }
+
+    /**
+     * Get the log of the weighted mean of probabilities that are given
+     * as logs.  The largest log is factored out, so the sum doesn't
+     * underflow.
+     *
+     * @param logs The log probability of each argument.
+     * @return The log of the weighted mean.
+     */
+    private double logWeightedSum(double[] logs) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double l : logs) {
+            max = Math.max(max, l);
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        double sum = 0.0;
+        for (int i = 0; i < logs.length; i++) {
+            sum += this.getNormalizedWeight(i) * Math.exp(logs[i] - max);
+        }
+        return max + Math.log(sum);
+    }
 }
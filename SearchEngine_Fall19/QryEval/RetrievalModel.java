@@ -10,10 +10,39 @@
  */
 public abstract class RetrievalModel {
 
+    /**
+     *  The index that queries are evaluated against, or null for the
+     *  current index.
+     */
+    private volatile IndexContext index = null;
+
     /**
      *  The name of the default query operator for the retrieval model.
      *  @return The name of the default query operator.
      */
     public abstract String defaultQrySopName();
 
+    /**
+     *  Get the index that queries are evaluated against.  Query
+     *  operators get their index from the retrieval model that they are
+     *  initialized with, instead of from the current index, so that
+     *  queries can be evaluated against several indexes at once.
+     *  @return The model's index, or the current index if the model
+     *          doesn't have one.
+     */
+    public IndexContext getIndexContext() {
+
+        IndexContext index = this.index;
+
+        return (index != null) ? index : Idx.getContext();
+    }
+
+    /**
+     *  Set the index that queries are evaluated against.
+     *  @param index An open index, or null for the current index.
+     */
+    public void setIndexContext(IndexContext index) {
+        this.index = index;
+    }
+
 }
@@ -2,6 +2,7 @@ public class RetrievalModelIndri extends RetrievalModel{
 
     private double mu;
     private double lambda;
+    private boolean logSpace = false;   // scores are log probabilities
 
     public RetrievalModelIndri(double mu, double lambda) {
         this.mu = mu;
@@ -16,6 +17,22 @@ public class RetrievalModelIndri extends RetrievalModel{
         return lambda;
     }
 
+    public boolean isLogSpace() {
+        return logSpace;
+    }
+
+    /**
+     * Score documents with log probabilities.  Query operators add
+     * weighted logs instead of multiplying probabilities and taking
+     * roots, which is faster and doesn't underflow for long queries.
+     * Log scores rank documents in the same order.
+     *
+     * @param logSpace True to score with log probabilities.
+     */
+    public void setLogSpace(boolean logSpace) {
+        this.logSpace = logSpace;
+    }
+
     @Override
     public String defaultQrySopName() {
         return new String ("#AND");
@@ -8,33 +8,49 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  The list stores internal docids and scores in parallel arrays.
+ *  External docids can be expensive to look up (without an ExternalIds
+ *  table, each one loads a stored document), so they are resolved
+ *  lazily:  by sort, only for entries whose scores tie, and by
+ *  resolveExternalDocids, only for the entries that are output.
+ *  Lookups are done in bulk, in docid order.
+ *  </p>
  */
 public class ScoreList {
 
-    //  A utility class to create a <internalDocid, externalDocid, score>
-    //  object.
+    //  --------------- Constants and variables -----------------------
 
-    private class ScoreListEntry {
-        private int docid;
-        private String externalId;
-        private double score;
+    private static final int INITIAL_CAPACITY = 16;
 
-        private ScoreListEntry(int internalDocid, double score) {
-            this.docid = internalDocid;
-            this.score = score;
+    /**
+     *  The index that the docids belong to, or null for the current index.
+     */
+    private final IndexContext index;
 
-            try {
-                this.externalId = Idx.getExternalDocid(this.docid);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
+    //  The entries.  An external docid is null until it is resolved.
+
+    private int[] docids = new int[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
+    private String[] externalIds = new String[INITIAL_CAPACITY];
+    private int size = 0;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Create an empty score list of documents in the current index.
+     */
+    public ScoreList() {
+        this(null);
     }
 
     /**
-     *  A list of document ids and scores.
+     *  Create an empty score list of documents in an index.
+     *  @param index The index, or null for the current index.
      */
-    private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+    public ScoreList(IndexContext index) {
+        this.index = index;
+    }
 
     /**
      *  Append a document score to a score list.
@@ -42,7 +58,30 @@ public class ScoreList {
      *  @param score The document's score.
      */
     public void add(int docid, double score) {
-        scores.add(new ScoreListEntry(docid, score));
+        this.add(docid, score, null);
+    }
+
+    /**
+     *  Append a document score to a score list, when the caller already
+     *  knows the document's external id.
+     *  @param docid An internal document id.
+     *  @param score The document's score.
+     *  @param externalId The document's external id, or null if it
+     *         isn't known.
+     */
+    public void add(int docid, double score, String externalId) {
+
+        if (this.size == this.docids.length) {
+            int capacity = 2 * this.size;
+            this.docids = Arrays.copyOf(this.docids, capacity);
+            this.scores = Arrays.copyOf(this.scores, capacity);
+            this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+        }
+
+        this.docids[this.size] = docid;
+        this.scores[this.size] = score;
+        this.externalIds[this.size] = externalId;
+        this.size++;
     }
 
     /**
@@ -51,7 +90,7 @@ public class ScoreList {
      *  @return The internal document id.
      */
     public int getDocid(int n) {
-        return this.scores.get(n).docid;
+        return this.docids[n];
     }
 
     /**
@@ -60,7 +99,23 @@ public class ScoreList {
      *  @return The document's score.
      */
     public double getDocidScore(int n) {
-        return this.scores.get(n).score;
+        return this.scores[n];
+    }
+
+    /**
+     *  Get the external docid of the n'th entry, looking it up if it
+     *  hasn't been resolved.  Use resolveExternalDocids first to look
+     *  up the external ids of many entries.
+     *  @param n The index of the requested document.
+     *  @return The external document id.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public String getExternalDocid(int n) throws IOException {
+
+        if (this.externalIds[n] == null)
+            this.externalIds[n] = this.getIndex().getExternalDocid(this.docids[n]);
+
+        return this.externalIds[n];
     }
 
     /**
@@ -69,7 +124,7 @@ public class ScoreList {
      *  @param score The new score.
      */
     public void setDocidScore(int n, double score) {
-        this.scores.get(n).score = score;
+        this.scores[n] = score;
     }
 
     /**
@@ -77,31 +132,168 @@ public class ScoreList {
      *  @return The size of the posting list.
      */
     public int size() {
-        return this.scores.size();
+        return this.size;
+    }
+
+    /**
+     *  Look up the external docids of the first n entries, in docid order.
+     *  @param n The number of entries.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void resolveExternalDocids(int n) throws IOException {
+
+        n = Math.min(n, this.size);
+
+        int[] entries = new int[n];
+        int count = 0;
+
+        for (int i = 0; i < n; i++) {
+            if (this.externalIds[i] == null)
+                entries[count++] = i;
+        }
+
+        this.resolve(entries, count);
+    }
+
+    /**
+     *  Look up the external docids of some entries, in docid order.
+     *  @param entries The indexes of the entries.
+     *  @param count The number of entries.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void resolve(int[] entries, int count) throws IOException {
+
+        //  Sort the entries by docid.  Docids are non-negative ints, so
+        //  (docid, entry) pairs sort correctly as longs.
+
+        long[] keys = new long[count];
+
+        for (int i = 0; i < count; i++)
+            keys[i] = ((long) this.docids[entries[i]] << 32) | entries[i];
+
+        Arrays.sort(keys);
+
+        IndexContext index = this.getIndex();
+
+        for (long key : keys) {
+            int entry = (int) key;
+            this.externalIds[entry] = index.getExternalDocid(this.docids[entry]);
+        }
+    }
+
+    /**
+     *  Get the index that the docids belong to.
+     *  @return The index.
+     */
+    private IndexContext getIndex() {
+        return (this.index != null) ? this.index : Idx.getContext();
+    }
+
+    /**
+     *  Sort the list by score and external document id.  External ids
+     *  are only looked up for entries whose scores tie.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void sort() throws IOException {
+
+        //  Find the entries whose scores tie, using a sorted copy of the
+        //  scores, and resolve their external ids.
+
+        double[] sorted = Arrays.copyOf(this.scores, this.size);
+        Arrays.sort(sorted);
+
+        int[] tied = new int[this.size];
+        int count = 0;
+
+        for (int i = 0; i < this.size; i++) {
+            if (this.externalIds[i] != null)
+                continue;
+
+            int k = Arrays.binarySearch(sorted, this.scores[i]);
+
+            if (((k > 0) && (Double.compare(sorted[k - 1], sorted[k]) == 0)) ||
+                ((k + 1 < this.size) && (Double.compare(sorted[k + 1], sorted[k]) == 0)))
+                tied[count++] = i;
+        }
+
+        this.resolve(tied, count);
+
+        //  Sort the entries by score, and then by external id.
+
+        int[] order = new int[this.size];
+
+        for (int i = 0; i < this.size; i++)
+            order[i] = i;
+
+        this.mergeSort(order, new int[this.size], 0, this.size);
+        this.permute(order);
     }
 
-    /*
-     *  Compare two ScoreListEntry objects.  Sort by score, then
-     *  internal docid.
+    /**
+     *  Compare two entries:  higher scores first, and then external ids
+     *  in ascending order.  Entries that have the same score must have
+     *  resolved external ids.
+     *  @param a An entry.
+     *  @param b Another entry.
+     *  @return A negative number, 0, or a positive number if entry a
+     *          sorts before, with, or after entry b.
      */
-    public class ScoreListComparator implements Comparator<ScoreListEntry> {
+    private int compare(int a, int b) {
+
+        int c = Double.compare(this.scores[b], this.scores[a]);
+
+        return (c != 0) ? c : this.externalIds[a].compareTo(this.externalIds[b]);
+    }
+
+    /**
+     *  Sort part of a permutation of the entries with a stable merge sort.
+     *  @param order The permutation.
+     *  @param tmp Scratch space, as large as order.
+     *  @param from The first position to sort.
+     *  @param to The position after the last one to sort.
+     */
+    private void mergeSort(int[] order, int[] tmp, int from, int to) {
+
+        if (to - from < 2)
+            return;
+
+        int mid = (from + to) >>> 1;
 
-        @Override
-        public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-            if (s1.score > s2.score)
-                return -1;
-            else if (s1.score < s2.score)
-                return 1;
+        this.mergeSort(order, tmp, from, mid);
+        this.mergeSort(order, tmp, mid, to);
+
+        if (this.compare(order[mid - 1], order[mid]) <= 0)
+            return;
+
+        System.arraycopy(order, from, tmp, from, to - from);
+
+        for (int i = from, j = mid, k = from; k < to; k++) {
+            if ((j >= to) || ((i < mid) && (this.compare(tmp[i], tmp[j]) <= 0)))
+                order[k] = tmp[i++];
             else
-                return s1.externalId.compareTo(s2.externalId);
+                order[k] = tmp[j++];
         }
     }
 
     /**
-     *  Sort the list by score and external document id.
+     *  Reorder the entries.
+     *  @param order The index of the entry that goes in each position.
      */
-    public void sort() {
-        Collections.sort(this.scores, new ScoreListComparator());
+    private void permute(int[] order) {
+
+        int[] docids = new int[this.docids.length];
+        double[] scores = new double[this.scores.length];
+        String[] externalIds = new String[this.externalIds.length];
+
+        for (int i = 0; i < this.size; i++) {
+            docids[i] = this.docids[order[i]];
+            scores[i] = this.scores[order[i]];
+            externalIds[i] = this.externalIds[order[i]];
+        }
+
+        this.docids = docids;
+        this.scores = scores;
+        this.externalIds = externalIds;
     }
 
     /**
@@ -110,10 +302,14 @@ public class ScoreList {
      * @param num Number of results to keep.
      */
     public void truncate(int num) {
-        List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-                Math.min(num, scores.size())));
-        this.scores.clear();
-        this.scores = truncated;
+
+        this.size = Math.min(num, this.size);
+
+        int capacity = Math.max(this.size, 1);
+
+        this.docids = Arrays.copyOf(this.docids, capacity);
+        this.scores = Arrays.copyOf(this.scores, capacity);
+        this.externalIds = Arrays.copyOf(this.externalIds, capacity);
     }
 
 
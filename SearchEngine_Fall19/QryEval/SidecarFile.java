@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ *  Common code for the sidecar files that are derived from an index
+ *  (FieldLengths, ExternalIds, and HotPostingsFile).
+ *  <p>
+ *  A sidecar file starts with a 24 byte header:  a magic number and a
+ *  format version that identify the kind of file, the version of the
+ *  index that it was built from, the index's maxDoc, and one int whose
+ *  meaning depends on the kind of file.  All values are big-endian.  A
+ *  file is current only if its header matches the index, so a file
+ *  that was built from another version of the index is rebuilt.  Files
+ *  are written to a temporary file that is moved into place when it is
+ *  complete, so that a partial file is never used.
+ *  </p>
+ */
+public class SidecarFile {
+
+    //  --------------- Constants and variables -----------------------
+
+    static final int HEADER_BYTES = 24;
+
+    /**
+     *  The offset of maxDoc in the header.
+     */
+    static final int MAX_DOC_OFFSET = 16;
+
+    /**
+     *  The offset of the int whose meaning depends on the kind of file.
+     */
+    static final int VALUE_OFFSET = 20;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Get the path of a sidecar file of an index.
+     *  @param indexPath The directory that contains the index.
+     *  @param suffix The suffix of the kind of file, e.g., ".lengths".
+     *  @return The path of the sidecar file.
+     */
+    static String getPath(String indexPath, String suffix) {
+
+        while (indexPath.endsWith(File.separator) && (indexPath.length() > 1))
+            indexPath = indexPath.substring(0, indexPath.length() - 1);
+
+        return indexPath + suffix;
+    }
+
+    /**
+     *  Determine whether a sidecar file exists and was built from the
+     *  current version of the index.
+     *  @param path The path of the file.
+     *  @param magic The magic number of the kind of file.
+     *  @param formatVersion The current format version of the kind of file.
+     *  @param index The index.
+     *  @return True if the file can be used.
+     */
+    static boolean isCurrent(String path, int magic, int formatVersion,
+                             IndexContext index) {
+
+        if (!new File(path).isFile())
+            return false;
+
+        try (RandomAccessFile f = new RandomAccessFile(path, "r")) {
+            return ((f.length() >= HEADER_BYTES) &&
+                    (f.readInt() == magic) &&
+                    (f.readInt() == formatVersion) &&
+                    (f.readLong() == index.getIndexVersion()) &&
+                    (f.readInt() == index.getReader().maxDoc()));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     *  Start writing a sidecar file.  The header is written to a
+     *  temporary file; commit moves it into place when it is complete.
+     *  @param path The path of the file.
+     *  @param magic The magic number of the kind of file.
+     *  @param formatVersion The format version of the kind of file.
+     *  @param index The index that the file is built from.
+     *  @param value The int whose meaning depends on the kind of file.
+     *  @return A stream that writes the rest of the temporary file.
+     *  @throws IOException Error creating the file.
+     */
+    static DataOutputStream create(String path, int magic, int formatVersion,
+                                   IndexContext index, int value)
+            throws IOException {
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getTempPath(path)), 1 << 16));
+
+        try {
+            out.writeInt(magic);
+            out.writeInt(formatVersion);
+            out.writeLong(index.getIndexVersion());
+            out.writeInt(index.getReader().maxDoc());
+            out.writeInt(value);
+        } catch (IOException ex) {
+            out.close();
+            throw ex;
+        }
+
+        return out;
+    }
+
+    /**
+     *  Replace the int whose meaning depends on the kind of file in the
+     *  header of a file that is being written, for values that are only
+     *  known once the rest of the file is written.  The stream that
+     *  create returned must be closed first.
+     *  @param path The path of the file.
+     *  @param value The new value.
+     *  @throws IOException Error writing the file.
+     */
+    static void setValue(String path, int value) throws IOException {
+
+        try (RandomAccessFile f = new RandomAccessFile(getTempPath(path), "rw")) {
+            f.seek(VALUE_OFFSET);
+            f.writeInt(value);
+        }
+    }
+
+    /**
+     *  Move a sidecar file that is complete into place.  The stream
+     *  that create returned must be closed first.
+     *  @param path The path of the file.
+     *  @throws IOException Error moving the file.
+     */
+    static void commit(String path) throws IOException {
+        Files.move(Paths.get(getTempPath(path)), Paths.get(path),
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     *  Get the path of the temporary file that a sidecar file is
+     *  written to.
+     *  @param path The path of the file.
+     *  @return The path of the temporary file.
+     */
+    private static String getTempPath(String path) {
+        return path + ".tmp";
+    }
+
+    /**
+     *  Map a sidecar file read-only.
+     *  @param path The path of the file.
+     *  @return The file, in big-endian order.
+     *  @throws IOException The file can't be read, or it is larger than 2GB.
+     */
+    static ByteBuffer map(String path) throws IOException {
+
+        ByteBuffer buffer;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Sidecar file " + path + " is larger than 2GB.");
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     *  Get a range of a mapped file as bytes.
+     *  @param buffer The mapped file.
+     *  @param position The offset of the range in bytes.
+     *  @param length The length of the range in bytes.
+     *  @param mapped True to read the range from the mapped file, false
+     *         to copy it to the heap.
+     *  @return The range.
+     */
+    static ByteBuffer getBytes(ByteBuffer buffer, int position, int length,
+                               boolean mapped) {
+
+        ByteBuffer b = buffer.duplicate();
+        b.position(position);
+        b.limit(position + length);
+        b = b.slice();
+
+        if (mapped)
+            return b;
+
+        byte[] array = new byte[length];
+        b.get(array);
+        return ByteBuffer.wrap(array);
+    }
+
+    /**
+     *  Get a range of a mapped file as big-endian ints.
+     *  @param buffer The mapped file.
+     *  @param position The offset of the range in bytes.
+     *  @param count The number of ints in the range.
+     *  @param mapped True to read the range from the mapped file, false
+     *         to copy it to the heap.
+     *  @return The range.
+     */
+    static IntBuffer getInts(ByteBuffer buffer, int position, int count,
+                             boolean mapped) {
+
+        ByteBuffer b = buffer.duplicate();
+        b.position(position);
+        b.limit(position + 4 * count);
+        IntBuffer ints = b.slice().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+
+        if (mapped)
+            return ints;
+
+        int[] array = new int[count];
+        ints.get(array);
+        return IntBuffer.wrap(array);
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A term-at-a-time evaluator for flat BM25 #SUM queries, i.e., #SUM
+ *  operators whose arguments are all #SCORE operators.
+ *  <p>
+ *  Document-at-a-time evaluation finds each matching document by
+ *  asking every argument for its next match, which costs several
+ *  virtual calls per argument per document.  A flat #SUM has a simpler
+ *  form:  the score of a document is the sum of the scores of the
+ *  #SCORE arguments that match it, and an argument that doesn't match
+ *  contributes 0.  So the evaluator reads one inverted list at a time
+ *  and adds each posting's score to an accumulator for its document.
+ *  The arguments are read in query order, so each document's score is
+ *  summed in the same order, and is the same double, as in
+ *  document-at-a-time evaluation.
+ *  </p><p>
+ *  Dense accumulators are arrays indexed by internal docid, plus a
+ *  bitmap of the documents that were touched; they are allocated once
+ *  per thread and index and reused by the thread's queries.  Sparse
+ *  accumulators are an open-addressing hash table that is sized by the
+ *  query's postings, for queries that touch a small part of a large
+ *  corpus.  The type of accumulators is a setting of the index (see
+ *  IndexContext.setTermAtATimeAccumulators).  Finally, the top k
+ *  documents are selected with a TopKCollector, without creating a
+ *  ScoreList entry for every match.
+ *  </p>
+ */
+public class TermAtATime {
+
+    //  --------------- Constants and variables -----------------------
+
+    /**
+     *  "auto" accumulators are sparse if the query's inverted lists
+     *  have fewer than maxDoc / SPARSE_RATIO postings.
+     */
+    private static final int SPARSE_RATIO = 16;
+
+    //  Each thread's dense accumulators.  They are replaced when the
+    //  thread evaluates a query on another index.
+
+    private static final ThreadLocal<DenseAccumulators> dense =
+            new ThreadLocal<DenseAccumulators>();
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Determine whether a query can be evaluated by this evaluator.
+     *  @param q The query, which must be initialized.
+     *  @param r The retrieval model.
+     *  @return True if the evaluator is enabled for the model's index
+     *          and the query is a BM25 #SUM of #SCORE operators.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r) {
+        return r.getIndexContext().isTermAtATime() && isFlatSum(q, r);
+    }
+
+    /**
+     *  Determine whether a query is a BM25 #SUM of #SCORE operators,
+     *  the form of query that this evaluator and MaxScore support.
+     *  @param q The query, which must be initialized.
+     *  @param r The retrieval model.
+     *  @return True if the query is a flat BM25 #SUM.
+     */
+    static boolean isFlatSum(Qry q, RetrievalModel r) {
+
+        if ((!(r instanceof RetrievalModelBM25)) ||
+            (!(q instanceof QrySopSum)))
+            return false;
+
+        for (Qry q_i : q.args) {
+            if ((!(q_i instanceof QrySopScore)) ||
+                (((QrySopScore) q_i).getBM25Norms() == null))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  Evaluate a query term-at-a-time.
+     *  @param q The query, which must be initialized, and which
+     *         canEvaluate must accept.
+     *  @param r The retrieval model.
+     *  @param k The number of documents to return.
+     *  @return The top k documents, unsorted.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static ScoreList evaluate(QrySop q, RetrievalModelBM25 r, int k)
+            throws IOException {
+
+        long postings = 0;
+
+        for (Qry q_i : q.args)
+            postings += q_i.getArg(0).getDf();
+
+        Accumulators acc = getAccumulators(r.getIndexContext(), postings);
+
+        for (Qry q_i : q.args)
+            accumulate((QrySopScore) q_i, r, acc);
+
+        int count = acc.size();
+        int[] docids = new int[count];
+        double[] scores = new double[count];
+
+        acc.drain(docids, scores);
+
+        TopKCollector top = new TopKCollector(r.getIndexContext(), k);
+        ScoreList results = new ScoreList(r.getIndexContext());
+
+        for (int i = 0; i < count; i++)
+            top.add(docids[i], scores[i]);
+
+        top.addTo(results);
+        return results;
+    }
+
+    /**
+     *  Add the scores of one #SCORE operator to the accumulators.
+     *  @param s The #SCORE operator.
+     *  @param r The retrieval model.
+     *  @param acc The accumulators.
+     */
+    private static void accumulate(QrySopScore s, RetrievalModel r,
+                                   Accumulators acc) {
+
+        QryIop q = s.getArg(0);
+        double weight = s.getBM25Weight();
+        double[] norms = s.getBM25Norms();
+
+        //  Same arithmetic as QrySopScore.getScore.
+
+        while (q.docIteratorHasMatch(r)) {
+            int docid = q.docIteratorGetMatch();
+            int tf = q.docIteratorGetMatchTf();
+
+            acc.add(docid, weight * tf / (tf + norms[docid]));
+            q.docIteratorAdvancePast(docid);
+        }
+    }
+
+    /**
+     *  Get empty accumulators for a query.
+     *  @param index The index that the query is evaluated against.
+     *  @param postings The number of postings in the query's inverted lists.
+     *  @return The accumulators.
+     */
+    private static Accumulators getAccumulators(IndexContext index,
+                                                long postings) {
+
+        IndexReader reader = index.getReader();
+        int maxDoc = reader.maxDoc();
+        String accumulators = index.getTermAtATimeAccumulators();
+
+        if (accumulators.equals("sparse") ||
+            (accumulators.equals("auto") && (postings < maxDoc / SPARSE_RATIO)))
+            return new SparseAccumulators((int) Math.min(postings, maxDoc));
+
+        DenseAccumulators acc = TermAtATime.dense.get();
+
+        if ((acc == null) || (acc.reader != reader)) {
+            acc = new DenseAccumulators(reader);
+            TermAtATime.dense.set(acc);
+        }
+
+        return acc;
+    }
+
+    //  --------------- Accumulators ----------------------------------
+
+    /**
+     *  A score accumulator for each document that a query matches.
+     */
+    private static abstract class Accumulators {
+
+        /**
+         *  Add to the score of a document.
+         *  @param docid The internal docid.
+         *  @param score The score to add.
+         */
+        abstract void add(int docid, double score);
+
+        /**
+         *  Get the number of documents that have been added to.
+         *  @return The number of documents.
+         */
+        abstract int size();
+
+        /**
+         *  Copy out the documents and their scores, and reset the
+         *  accumulators.
+         *  @param docids Filled with size() internal docids.
+         *  @param scores Filled with the score of each document.
+         */
+        abstract void drain(int[] docids, double[] scores);
+    }
+
+    /**
+     *  Accumulators indexed by internal docid.
+     */
+    private static class DenseAccumulators extends Accumulators {
+
+        final IndexReader reader;
+        private final double[] scores;
+        private final long[] touched;
+        private int size = 0;
+
+        DenseAccumulators(IndexReader reader) {
+            this.reader = reader;
+            this.scores = new double[reader.maxDoc()];
+            this.touched = new long[(reader.maxDoc() + 63) >>> 6];
+        }
+
+        void add(int docid, double score) {
+
+            long bit = 1L << docid;
+
+            if ((this.touched[docid >>> 6] & bit) == 0) {
+                this.touched[docid >>> 6] |= bit;
+                this.size++;
+            }
+
+            this.scores[docid] += score;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        void drain(int[] docids, double[] scores) {
+
+            int n = 0;
+
+            for (int w = 0; w < this.touched.length; w++) {
+                long word = this.touched[w];
+
+                while (word != 0) {
+                    int docid = (w << 6) + Long.numberOfTrailingZeros(word);
+
+                    docids[n] = docid;
+                    scores[n] = this.scores[docid];
+                    this.scores[docid] = 0.0;
+                    n++;
+                    word &= word - 1;
+                }
+
+                this.touched[w] = 0;
+            }
+
+            this.size = 0;
+        }
+    }
+
+    /**
+     *  Accumulators in an open-addressing hash table with linear probing.
+     */
+    private static class SparseAccumulators extends Accumulators {
+
+        private int[] keys;
+        private double[] scores;
+        private int mask;
+        private int size = 0;
+
+        SparseAccumulators(int expected) {
+
+            int capacity = 16;
+
+            while (capacity < 2L * expected && capacity < (1 << 30))
+                capacity <<= 1;
+
+            this.allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            this.keys = new int[capacity];
+            this.scores = new double[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(this.keys, -1);
+        }
+
+        private int slot(int docid) {
+
+            int i = (docid * 0x9E3779B9) & this.mask;
+
+            while ((this.keys[i] != -1) && (this.keys[i] != docid))
+                i = (i + 1) & this.mask;
+
+            return i;
+        }
+
+        void add(int docid, double score) {
+
+            int i = this.slot(docid);
+
+            if (this.keys[i] == -1) {
+                if (2 * (this.size + 1) > this.keys.length) {
+                    this.grow();
+                    i = this.slot(docid);
+                }
+
+                this.keys[i] = docid;
+                this.size++;
+            }
+
+            this.scores[i] += score;
+        }
+
+        private void grow() {
+
+            int[] oldKeys = this.keys;
+            double[] oldScores = this.scores;
+
+            this.allocate(oldKeys.length * 2);
+
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != -1) {
+                    int i = this.slot(oldKeys[j]);
+                    this.keys[i] = oldKeys[j];
+                    this.scores[i] = oldScores[j];
+                }
+            }
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        void drain(int[] docids, double[] scores) {
+
+            int n = 0;
+
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] != -1) {
+                    docids[n] = this.keys[i];
+                    scores[n] = this.scores[i];
+                    n++;
+                    this.keys[i] = -1;
+                    this.scores[i] = 0.0;
+                }
+            }
+
+            this.size = 0;
+        }
+    }
+}
@@ -4,6 +4,7 @@
 
 import java.io.*;
 
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
@@ -39,22 +40,35 @@ public class TermVector {
     private String[] stems;    // The vocabulary. 0 indicates a stopword
     private int[] stemsFreq;    // The frequency (tf) of each entry in stems
     private Term[] terms;
+    private IndexReader reader;
 
     //  --------------- Methods ---------------------------------------
 
     /**
-     *  @param docId An internal document id
+     *  @param docId An internal document id in the current index
      *  @param fieldName The name of a document field.
      *  @throws IOException Error accessing the Lucene index
      **/
     public TermVector(int docId, String fieldName) throws IOException {
+        this(Idx.getContext(), docId, fieldName);
+    }
+
+    /**
+     *  @param index The index that contains the document
+     *  @param docId An internal document id
+     *  @param fieldName The name of a document field.
+     *  @throws IOException Error accessing the Lucene index
+     **/
+    public TermVector(IndexContext index, int docId, String fieldName)
+            throws IOException {
         this.docId = docId;
         this.fieldName = fieldName;
         this.fieldLength = 0;
+        this.reader = index.getReader();
 
         //  Fetch the term vector, if one exists.
 
-        this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+        this.luceneTerms = this.reader.getTermVector(docId, fieldName);
 
         //  If Lucene doesn't have a term vector, our TermVector is empty.
 
@@ -196,7 +210,7 @@ public class TermVector {
      * @throws IOException  Error accessing the Lucene index
      */
     public long totalStemFreq(int i) throws IOException {
-        return Idx.INDEXREADER.totalTermFreq(terms[i]);
+        return this.reader.totalTermFreq(terms[i]);
     }
 
     /**
@@ -206,7 +220,7 @@ public class TermVector {
      * @throws IOException Error accessing the Lucene index
      */
     public int stemDf(int i) throws IOException {
-        return Idx.INDEXREADER.docFreq(terms[i]);
+        return this.reader.docFreq(terms[i]);
     }
 
 }
@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Collects the k best documents of a query, in the order that
+ *  ScoreList.sort uses:  by score, and then by external docid.  The
+ *  documents are kept in a bounded min-heap on primitive arrays whose
+ *  root is the worst document, so memory and sort costs are O(k)
+ *  instead of O(matches).  External docids are only looked up when two
+ *  documents have the same score, and each is looked up once.
+ */
+public class TopKCollector {
+
+    //  --------------- Constants and variables -----------------------
+
+    private final IndexContext index;
+    private final int k;
+
+    //  The heap.  docids[0], scores[0], and externalIds[0] are the worst
+    //  document.  An external docid is null until it is needed.
+
+    private int[] docids;
+    private double[] scores;
+    private String[] externalIds;
+    private int size = 0;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Create a collector.
+     *  @param index The index that the documents belong to.
+     *  @param k The number of documents to keep.  Integer.MAX_VALUE
+     *         keeps every document.
+     */
+    public TopKCollector(IndexContext index, int k) {
+
+        int capacity = Math.max(1, Math.min(k, 64));
+
+        this.index = index;
+        this.k = k;
+        this.docids = new int[capacity];
+        this.scores = new double[capacity];
+        this.externalIds = new String[capacity];
+    }
+
+    /**
+     *  Offer a document to the collector.
+     *  @param docid The internal docid.
+     *  @param score The document's score.
+     *  @return True if the document is now one of the k best.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public boolean add(int docid, double score) throws IOException {
+
+        if (this.k <= 0)
+            return false;
+
+        if (this.size < this.k) {
+            if (this.size == this.docids.length)
+                this.grow();
+
+            this.docids[this.size] = docid;
+            this.scores[this.size] = score;
+            this.externalIds[this.size] = null;
+            this.siftUp(this.size++);
+            return true;
+        }
+
+        //  The heap is full.  Replace the worst document if this one is better.
+
+        if (score < this.scores[0])
+            return false;
+
+        String externalId = null;
+
+        if (score == this.scores[0]) {
+            externalId = this.index.getExternalDocid(docid);
+
+            if (externalId.compareTo(this.getExternalId(0)) > 0)
+                return false;
+        }
+
+        this.docids[0] = docid;
+        this.scores[0] = score;
+        this.externalIds[0] = externalId;
+        this.siftDown(0);
+        return true;
+    }
+
+    /**
+     *  Add the collected documents, and any external docids that were
+     *  looked up, to a score list.  The score list must be sorted by
+     *  the caller.
+     *  @param results The score list.
+     */
+    public void addTo(ScoreList results) {
+
+        for (int i = 0; i < this.size; i++)
+            results.add(this.docids[i], this.scores[i], this.externalIds[i]);
+    }
+
+    /**
+     *  Get the score that a document must reach to be one of the k best.
+     *  A document with exactly this score is kept only if its external
+     *  docid sorts before the worst kept document's.
+     *  @return The worst kept score, or -Infinity if fewer than k
+     *          documents have been collected.
+     */
+    public double getThreshold() {
+        return ((this.size < this.k) || (this.k <= 0)) ?
+                Double.NEGATIVE_INFINITY : this.scores[0];
+    }
+
+    /**
+     *  Get the number of documents that have been collected.
+     *  @return The number of documents, at most k.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     *  Get the external docid of a heap entry, looking it up if necessary.
+     *  @param i The heap entry.
+     *  @return The external docid.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private String getExternalId(int i) throws IOException {
+
+        if (this.externalIds[i] == null)
+            this.externalIds[i] = this.index.getExternalDocid(this.docids[i]);
+
+        return this.externalIds[i];
+    }
+
+    /**
+     *  Make the heap larger, up to k entries.
+     */
+    private void grow() {
+
+        int capacity = (int) Math.min((long) this.k, 2L * this.docids.length);
+
+        this.docids = Arrays.copyOf(this.docids, capacity);
+        this.scores = Arrays.copyOf(this.scores, capacity);
+        this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+    }
+
+    /**
+     *  Determine whether heap entry i is worse than heap entry j.
+     *  @param i A heap entry.
+     *  @param j Another heap entry.
+     *  @return True if entry i sorts after entry j.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private boolean worse(int i, int j) throws IOException {
+
+        if (this.scores[i] != this.scores[j])
+            return (this.scores[i] < this.scores[j]);
+
+        return (this.getExternalId(i).compareTo(this.getExternalId(j)) > 0);
+    }
+
+    /**
+     *  Move a heap entry toward the root until the heap is in order.
+     *  @param i The heap entry.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void siftUp(int i) throws IOException {
+
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+
+            if (!this.worse(i, parent))
+                break;
+
+            this.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    /**
+     *  Move a heap entry away from the root until the heap is in order.
+     *  @param i The heap entry.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void siftDown(int i) throws IOException {
+
+        while (2 * i + 1 < this.size) {
+            int child = 2 * i + 1;
+
+            if ((child + 1 < this.size) && this.worse(child + 1, child))
+                child++;
+
+            if (!this.worse(child, i))
+                break;
+
+            this.swap(i, child);
+            i = child;
+        }
+    }
+
+    /**
+     *  Swap two heap entries.
+     *  @param i A heap entry.
+     *  @param j Another heap entry.
+     */
+    private void swap(int i, int j) {
+
+        int docid = this.docids[i];
+        double score = this.scores[i];
+        String externalId = this.externalIds[i];
+
+        this.docids[i] = this.docids[j];
+        this.scores[i] = this.scores[j];
+        this.externalIds[i] = this.externalIds[j];
+        this.docids[j] = docid;
+        this.scores[j] = score;
+        this.externalIds[j] = externalId;
+    }
+}